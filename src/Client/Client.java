@@ -1,5 +1,6 @@
 package Client;
 
+import Common.remote.BackupOptions;
 import Common.remote.IControl;
 
 import java.io.File;
@@ -18,7 +19,10 @@ public class Client {
         CMD_RESTORE("RESTORE"),
         CMD_DELETE("DELETE"),
         CMD_RECLAIM("RECLAIM"),
-        CMD_STATE("STATE");
+        CMD_STATE("STATE"),
+        CMD_SUBMIT("SUBMIT"),
+        CMD_STATUS("STATUS"),
+        CMD_CANCEL("CANCEL");
 
         private final String text;
 
@@ -43,6 +47,8 @@ public class Client {
     private String fileName;
     private int replication;
     private String diskSpace;
+    private String jobId;
+    private BackupOptions backupOptions = new BackupOptions();
 
     //private Message message;
 
@@ -51,9 +57,10 @@ public class Client {
         peerId = args[0];
         operation = args[1];
 
-        if(operation.equals(Commands.CMD_BACKUP.toString())) {
+        if(operation.equals(Commands.CMD_BACKUP.toString()) || operation.equals(Commands.CMD_SUBMIT.toString())) {
             fileName = args[2];
             replication = Integer.parseInt(args[3]);
+            parseBackupOptions(args, 4);
         }
         else if(operation.equals(Commands.CMD_DELETE.toString()) || operation.equals(Commands.CMD_RESTORE.toString())) {
             fileName = args[2];
@@ -61,6 +68,9 @@ public class Client {
         else if(operation.equals(Commands.CMD_RECLAIM.toString())) {
             diskSpace = args[2];
         }
+        else if(operation.equals(Commands.CMD_STATUS.toString()) || operation.equals(Commands.CMD_CANCEL.toString())) {
+            jobId = args[2];
+        }
 
         // make RMI connection with Peer
         try {
@@ -81,7 +91,7 @@ public class Client {
             case "BACKUP":
                 if(!file.exists())
                     throw new IOException();
-                response = control.backup(file, replication);
+                response = control.backup(file, replication, backupOptions);
                 break;
             case "DELETE":
                 if(!file.exists())
@@ -99,6 +109,17 @@ public class Client {
             case "STATE":
                 response = control.state();
                 break;
+            case "SUBMIT":
+                if(!file.exists())
+                    throw new IOException();
+                response = control.submitBackup(file, replication, backupOptions);
+                break;
+            case "STATUS":
+                response = control.status(jobId);
+                break;
+            case "CANCEL":
+                response = control.cancel(jobId);
+                break;
             default:
                 response = "Invalid Operation";
         }
@@ -106,14 +127,58 @@ public class Client {
         System.out.println("Response: " + response);
     }
 
+    /**
+     * Parses the optional backup parameters, given as key=value
+     * @param args command line arguments
+     * @param first index of the first optional parameter
+     */
+    private void parseBackupOptions(String[] args, int first) {
+        for (int i = first; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            if (option.length < 2)
+                throw new IllegalArgumentException("Invalid backup option: " + args[i]);
+
+            switch (option[0]) {
+                case "window":
+                    backupOptions.setWindowSize(Integer.parseInt(option[1]));
+                    break;
+                case "chunking":
+                    if (!option[1].equals("fixed") && !option[1].equals("cdc"))
+                        throw new IllegalArgumentException("Chunking must be fixed or cdc");
+                    backupOptions.setContentDefinedChunking(option[1].equals("cdc"));
+                    break;
+                case "fileid":
+                    if (!option[1].equals("name") && !option[1].equals("content"))
+                        throw new IllegalArgumentException("File id must be name or content");
+                    backupOptions.setContentHash(option[1].equals("content"));
+                    break;
+                case "compress":
+                    backupOptions.setCompression(Boolean.parseBoolean(option[1]));
+                    break;
+                case "ec":
+                    String[] fragments = option[1].split("\\+");
+                    if (fragments.length != 2)
+                        throw new IllegalArgumentException("Erasure coding must be <data>+<parity>");
+                    backupOptions.setErasureCoding(Integer.parseInt(fragments[0]), Integer.parseInt(fragments[1]));
+                    break;
+                case "fec":
+                    backupOptions.setParityGroupSize(Integer.parseInt(option[1]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown backup option: " + option[0]);
+            }
+        }
+    }
+
     public String getOperation() {
         return this.operation;
     }
 
     public static void main(String[] args) throws UnknownHostException, RemoteException {
 
-        if (args.length < 1 || args.length > 5) {
-            System.out.println("Usage: java Client <peer_ap> <operation> <opnd_1> <opnd_2>");
+        if (args.length < 1) {
+            System.out.println("Usage: java Client <peer_ap> <operation> <opnd_1> <opnd_2> [backup options]");
+            System.out.println("\tbackup options: window=<chunks> chunking=<fixed|cdc> fileid=<name|content> compress=<true|false> ec=<data>+<parity> fec=<chunks>");
             return;
         }
 
@@ -0,0 +1,81 @@
+package Common.messages;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Encoding of chunk bodies in version 1.1 of the protocol. The first byte of the body identifies the codec,
+ * chosen for each chunk, and the rest is the chunk content encoded with it.
+ * Chunks that don't get smaller when compressed are sent raw.
+ */
+public class ChunkCodec {
+    public static final byte RAW = 0;
+    public static final byte DEFLATE = 1;
+
+    /**
+     * Encodes the chunk content, compressing it if that makes it smaller
+     * @param content the chunk content
+     * @return the body to send, starting with the codec
+     */
+    public static byte[] encode(byte[] content) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(content);
+        deflater.finish();
+
+        // Only compressed output smaller than the content is useful, so the buffer doesn't need to be bigger
+        byte[] body = new byte[content.length + 1];
+        int length = 1;
+        while (!deflater.finished() && length < body.length)
+            length += deflater.deflate(body, length, body.length - length);
+        boolean compressed = deflater.finished() && length < body.length;
+        deflater.end();
+
+        if (!compressed) {
+            body[0] = RAW;
+            System.arraycopy(content, 0, body, 1, content.length);
+            return body;
+        }
+
+        body[0] = DEFLATE;
+        byte[] result = new byte[length];
+        System.arraycopy(body, 0, result, 0, length);
+        return result;
+    }
+
+    /**
+     * Decodes a body encoded with encode
+     * @param body the body, starting with the codec
+     * @return the chunk content
+     */
+    public static byte[] decode(byte[] body) throws DataFormatException {
+        if (body.length == 0)
+            throw new DataFormatException("Missing chunk codec");
+
+        switch (body[0]) {
+            case RAW:
+                byte[] content = new byte[body.length - 1];
+                System.arraycopy(body, 1, content, 0, content.length);
+                return content;
+            case DEFLATE:
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(body, 1, body.length - 1);
+                    ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 4);
+                    byte[] buffer = new byte[16384];
+                    while (!inflater.finished()) {
+                        int read = inflater.inflate(buffer);
+                        if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                            throw new DataFormatException("Truncated compressed chunk");
+                        out.write(buffer, 0, read);
+                    }
+                    return out.toByteArray();
+                } finally {
+                    inflater.end();
+                }
+            default:
+                throw new DataFormatException("Unknown chunk codec: " + body[0]);
+        }
+    }
+}
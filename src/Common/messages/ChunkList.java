@@ -0,0 +1,81 @@
+package Common.messages;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/*
+ * Body of a batched control message (version 1.3): the chunk numbers of the fileId in the header, in increasing
+ * order, encoded as ASCII ranges separated by commas. For example, chunks 0, 1, 2, 3, 7, 9, 10 are encoded as
+ * "0-3,7,9-10".
+ */
+public class ChunkList {
+    public static final int MAX_LENGTH = 1024;      // bytes of the body
+    public static final int MAX_CHUNKS = 4096;      // chunks a single list may describe, ranges included
+
+    /**
+     * @param chunkNos chunk numbers sorted in increasing order, without repetitions
+     */
+    public static byte[] encode(Collection<Integer> chunkNos) {
+        StringBuilder builder = new StringBuilder();
+        int first = -1, last = -1;
+        for (int chunkNo : chunkNos) {
+            if (first >= 0 && chunkNo == last + 1) {
+                last = chunkNo;
+                continue;
+            }
+            if (first >= 0)
+                appendRange(builder, first, last);
+            first = last = chunkNo;
+        }
+        if (first >= 0)
+            appendRange(builder, first, last);
+        return builder.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void appendRange(StringBuilder builder, int first, int last) {
+        if (builder.length() > 0)
+            builder.append(',');
+        builder.append(first);
+        if (last != first)
+            builder.append('-').append(last);
+    }
+
+    /**
+     * @return the chunk numbers in the list
+     * @throws IllegalArgumentException if the list isn't valid or has more than MAX_CHUNKS chunks
+     */
+    public static List<Integer> decode(ByteBuffer body) {
+        if (body.remaining() > MAX_LENGTH)
+            throw new IllegalArgumentException("Chunk list too long");
+        ArrayList<Integer> chunkNos = new ArrayList<>();
+        int first = -1, value = -1;
+        while (body.hasRemaining()) {
+            byte b = body.get();
+            if (b >= '0' && b <= '9') {
+                if (value > (Integer.MAX_VALUE - (b - '0')) / 10)
+                    throw new IllegalArgumentException("Invalid chunk number");
+                value = (value < 0 ? 0 : value * 10) + (b - '0');
+            } else if (b == '-' && value >= 0 && first < 0) {
+                first = value;
+                value = -1;
+            } else if (b == ',' && value >= 0) {
+                addRange(chunkNos, first < 0 ? value : first, value);
+                first = value = -1;
+            } else throw new IllegalArgumentException("Invalid chunk list");
+        }
+        if (value >= 0)
+            addRange(chunkNos, first < 0 ? value : first, value);
+        return chunkNos;
+    }
+
+    private static void addRange(List<Integer> chunkNos, int first, int last) {
+        if (last < first || (long) last - first + 1 > MAX_CHUNKS - chunkNos.size())
+            throw new IllegalArgumentException("Invalid chunk range " + first + "-" + last);
+        // Counted from the first chunk, so the last one can be Integer.MAX_VALUE
+        for (int i = 0; i <= last - first; i++)
+            chunkNos.add(first + i);
+    }
+}
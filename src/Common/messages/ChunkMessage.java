@@ -11,13 +11,5 @@ public class ChunkMessage extends Message implements Serializable {
         this.setChunkNo(chunkNo);
         this.setBody(body);
     }
-
-    public byte[] getBytes() {
-        byte[] header = getHeader().getBytes();
-        byte[] message = new byte[header.length + this.getBody().length];
-        System.arraycopy(header, 0, message, 0, header.length);
-        System.arraycopy(this.getBody(), 0, message, header.length, this.getBody().length);
-        return message;
-    }
 }
 
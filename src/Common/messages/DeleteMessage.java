@@ -7,8 +7,4 @@ public class DeleteMessage extends Message {
         this.setSenderId(senderId);
         this.setFileId(fileId);
     }
-
-    public byte[] getBytes() {
-        return getHeader().getBytes();
-    }
 }
@@ -8,9 +8,5 @@ public class GetChunkMessage extends Message {
         this.setFileId(fileId);
         this.setChunkNo(chunkNo);
     }
-
-    public byte[] getBytes() {
-        return getHeader().getBytes();
-    }
 }
 
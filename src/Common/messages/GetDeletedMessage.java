@@ -7,9 +7,4 @@ public class GetDeletedMessage extends Message{
         this.setSenderId(senderId);
         this.setFileId(fileId);
     }
-
-    @Override
-    public byte[] getBytes() {
-        return getHeader().getBytes();
-    }
 }
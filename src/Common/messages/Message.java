@@ -1,9 +1,16 @@
 package Common.messages;
 
 import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
 
 public abstract class Message implements Serializable {
     /*
@@ -53,7 +60,16 @@ public abstract class Message implements Serializable {
      */
     private int replicationDeg;
 
+    /*
+     * The body is a range of this array. A received message keeps its body in the buffer it was received in,
+     * without copying it.
+     */
     private byte[] body;
+    private int bodyOffset;
+    private int bodyLength;
+
+    private static final int MAX_HEADER_FIELDS = 6;
+    private static final byte[] CRLF_CRLF = { '\r', '\n', '\r', '\n' };
 
     /*
      * Constructor
@@ -111,14 +127,40 @@ public abstract class Message implements Serializable {
         this.replicationDeg = replicationDeg;
     }
 
+    /**
+     * @return the body in an array of its exact size, copied if the body is only part of a larger array
+     */
     public byte[] getBody() {
+        if (body != null && (bodyOffset != 0 || bodyLength != body.length))
+            setBody(Arrays.copyOfRange(body, bodyOffset, bodyOffset + bodyLength));
         return body;
     }
 
+    /**
+     * @return the body, without copying it
+     */
+    public ByteBuffer getBodyBuffer() {
+        return ByteBuffer.wrap(body, bodyOffset, bodyLength).slice();
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
     public void setBody(byte[] body) {
+        setBody(body, 0, body == null ? 0 : body.length);
+    }
+
+    /**
+     * Uses a range of the array as body, without copying it
+     */
+    public void setBody(byte[] body, int offset, int length) {
         this.body = body;
+        this.bodyOffset = offset;
+        this.bodyLength = length;
     }
 
+
     public String getHeader() {
         return this.messageType.toString() + " " +
                 this.version.toString() + " " +
@@ -129,7 +171,67 @@ public abstract class Message implements Serializable {
                 "\r\n\r\n";
     }
 
-    public abstract byte[] getBytes();
+    /**
+     * @return the message in a new array, as it is sent
+     */
+    public byte[] getBytes() {
+        byte[] bytes = new byte[getEncodedLength()];
+        encode(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    /**
+     * @return the number of bytes of the message, header and body
+     */
+    public int getEncodedLength() {
+        return messageType.getEncoded().length + 1 + version.getEncodedLength() + 1 + getEncodedLength(senderId) + 1 +
+                fileId.length() + 1 + getEncodedLength(chunkNo) + 1 + getEncodedLength(replicationDeg) + 1 +
+                CRLF_CRLF.length + bodyLength;
+    }
+
+    /**
+     * Writes the message to the buffer, with the same format as getHeader followed by the body, without
+     * creating any object
+     */
+    public void encode(ByteBuffer out) {
+        out.put(messageType.getEncoded()).put((byte) ' ');
+        version.encode(out);
+        out.put((byte) ' ');
+        encode(out, senderId);
+        out.put((byte) ' ');
+        for (int i = 0; i < fileId.length(); i++)
+            out.put((byte) fileId.charAt(i));
+        out.put((byte) ' ');
+        encode(out, chunkNo);
+        out.put((byte) ' ');
+        encode(out, replicationDeg);
+        out.put((byte) ' ').put(CRLF_CRLF);
+        if (bodyLength > 0)
+            out.put(body, bodyOffset, bodyLength);
+    }
+
+    /**
+     * @return the number of ASCII digits of a non negative number
+     */
+    static int getEncodedLength(int value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    /**
+     * Writes a non negative number as ASCII digits
+     */
+    static void encode(ByteBuffer out, int value) {
+        int divisor = 1;
+        while (value / divisor >= 10)
+            divisor *= 10;
+        for (; divisor > 0; divisor /= 10)
+            out.put((byte) ('0' + (value / divisor) % 10));
+    }
 
     public enum MessageType {
         PUTCHUNK("PUTCHUNK"),
@@ -138,12 +240,19 @@ public abstract class Message implements Serializable {
         CHUNK("CHUNK"),
         DELETE("DELETE"),
         REMOVED("REMOVED"),
-        GET_DELETED("GET_DELETED");
+        GET_DELETED("GET_DELETED"),
+        PARITY("PARITY");
 
         private final String type;
+        private final byte[] encoded;
 
         MessageType(String type) {
             this.type = type;
+            this.encoded = type.getBytes(StandardCharsets.US_ASCII);
+        }
+
+        private byte[] getEncoded() {
+            return encoded;
         }
 
         @Override
@@ -153,58 +262,162 @@ public abstract class Message implements Serializable {
     }
 
     public static Message parseMessage(DatagramPacket packet) {
-        Message msg = null;
+        return parseMessage(packet.getData(), packet.getOffset(), packet.getLength());
+    }
 
-        try {
-            byte[] data = new byte[packet.getLength()];
-            System.arraycopy(packet.getData(), 0, data, 0, data.length);
+    /**
+     * Parses the message by scanning only the bytes of the header. The body of the message is kept in the
+     * given array, so the array can't be reused while the message is in use.
+     * @return the message, or null if it isn't valid
+     */
+    public static Message parseMessage(byte[] data, int offset, int length) {
+        // Start and end of each field of the header
+        int[] fieldStart = new int[MAX_HEADER_FIELDS];
+        int[] fieldEnd = new int[MAX_HEADER_FIELDS];
+        int fields = 0;
+        int end = offset + length;
+        int i = offset;
+        int bodyStart = -1;
+
+        while (i < end) {
+            byte b = data[i];
+            if (b == '\r') {
+                if (i + 3 < end && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n')
+                    bodyStart = i + 4;
+                break;
+            } else if (b == ' ') {
+                i++;
+            } else {
+                if (fields == MAX_HEADER_FIELDS)
+                    break;
+                fieldStart[fields] = i;
+                while (i < end && data[i] != ' ' && data[i] != '\r')
+                    i++;
+                fieldEnd[fields++] = i;
+            }
+        }
 
-            String value = new String(data, "UTF-8");
-            String[] parameters = value.split(" ");
-            String[] headerBody = value.split("\r\n\r\n", 2);
-            String[] version = parameters[1].split("\\.");
+        try {
+            if (bodyStart < 0 || fields < 3)
+                throw new IllegalArgumentException("Header not terminated");
 
-            int headerSize = headerBody[0].getBytes().length + new String("\r\n\r\n").getBytes().length;
-            byte chunk[];
+            String type = new String(data, fieldStart[0], fieldEnd[0] - fieldStart[0], StandardCharsets.US_ASCII);
+            Version version = parseVersion(data, fieldStart[1], fieldEnd[1]);
+            int senderId = parseInt(data, fieldStart[2], fieldEnd[2]);
+            String fileId = fields > 3 ? new String(data, fieldStart[3], fieldEnd[3] - fieldStart[3], StandardCharsets.US_ASCII) : null;
+            int chunkNo = fields > 4 ? parseInt(data, fieldStart[4], fieldEnd[4]) : 0;
+            Message msg;
 
-            switch (parameters[0]) {
+            switch (type) {
                 case "PUTCHUNK":
-                    chunk = Arrays.copyOfRange(data,headerSize,data.length);
-                    msg = new PutChunkMessage(new Version(Integer.parseInt(version[0]), Integer.parseInt(version[1]))
-                            , Integer.parseInt(parameters[2]), parameters[3], Integer.parseInt(parameters[4]),
-                            Integer.parseInt(parameters[5]), chunk);
+                    msg = new PutChunkMessage(version, senderId, fileId, chunkNo, parseInt(data, fieldStart[5], fieldEnd[5]), null);
                     break;
                 case "STORED":
-                    msg = new StoredMessage(new Version(Integer.parseInt(version[0]), Integer.parseInt(version[1])),
-                            Integer.parseInt(parameters[2]), parameters[3], Integer.parseInt(parameters[4]));
+                    msg = new StoredMessage(version, senderId, fileId, chunkNo);
                     break;
                 case "DELETE":
-                    msg = new DeleteMessage(new Version(Integer.parseInt(version[0]), Integer.parseInt(version[1])),
-                            Integer.parseInt(parameters[2]), parameters[3]);
+                    msg = new DeleteMessage(version, senderId, fileId);
                     break;
                 case "CHUNK":
-                    chunk = Arrays.copyOfRange(data,headerSize,data.length);
-                    msg = new ChunkMessage(new Version(Integer.parseInt(version[0]), Integer.parseInt(version[1]))
-                            , Integer.parseInt(parameters[2]), parameters[3], Integer.parseInt(parameters[4]), chunk);
+                    msg = new ChunkMessage(version, senderId, fileId, chunkNo, null);
                     break;
                 case "GETCHUNK":
-                    msg = new GetChunkMessage(new Version(Integer.parseInt(version[0]), Integer.parseInt(version[1])),
-                            Integer.parseInt(parameters[2]), parameters[3], Integer.parseInt(parameters[4]));
+                    msg = new GetChunkMessage(version, senderId, fileId, chunkNo);
                     break;
                 case "REMOVED":
-                    msg = new RemovedMessage(new Version(Integer.parseInt(version[0]), Integer.parseInt(version[1])),
-                            Integer.parseInt(parameters[2]), parameters[3], Integer.parseInt(parameters[4]));
+                    msg = new RemovedMessage(version, senderId, fileId, chunkNo);
                     break;
                 case "GET_DELETED":
-                    msg = new GetDeletedMessage(new Version(Integer.parseInt(version[0]), Integer.parseInt(version[1])),
-                            Integer.parseInt(parameters[2]), parameters[3]);
+                    msg = new GetDeletedMessage(version, senderId, fileId);
+                    break;
+                case "PARITY":
+                    msg = new ParityMessage(version, senderId, fileId, chunkNo, parseInt(data, fieldStart[5], fieldEnd[5]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown message type " + type);
             }
+            // Chunk data, or the records of a batched control message
+            msg.setBody(data, bodyStart, end - bodyStart);
+            return msg;
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            Logger.getGlobal().warning("Ignoring invalid message: " + e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Parses a version with the format <n>'.'<m>
+     */
+    private static Version parseVersion(byte[] data, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == '.')
+                return new Version(parseInt(data, start, i), parseInt(data, i + 1, end));
+        }
+        throw new IllegalArgumentException("Invalid version");
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Parses a non negative decimal number written in ASCII digits
+     */
+    private static int parseInt(byte[] data, int start, int end) {
+        if (start >= end || end - start > 9)
+            throw new IllegalArgumentException("Invalid number");
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9)
+                throw new IllegalArgumentException("Invalid number");
+            value = value * 10 + digit;
         }
+        return value;
+    }
+
+    /**
+     * A message sent through a stream only carries its own body, not the whole array it was received in
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getBody();
+        out.defaultWriteObject();
+    }
+
+    /**
+     * A batched control message (version 1.3) carries many records in its body: the chunks of its fileId, or
+     * for GET_DELETED, more fileIds separated by spaces
+     * @return one message for each record, or an empty list if the body isn't valid
+     */
+    public List<Message> getRecords() {
+        if (bodyLength == 0)
+            return Collections.singletonList(this);
 
-        return msg;
+        ArrayList<Message> records = new ArrayList<>();
+        try {
+            switch (messageType) {
+                case STORED:
+                    for (int chunkNo : ChunkList.decode(getBodyBuffer()))
+                        records.add(new StoredMessage(version, senderId, fileId, chunkNo));
+                    break;
+                case GETCHUNK:
+                    for (int chunkNo : ChunkList.decode(getBodyBuffer()))
+                        records.add(new GetChunkMessage(version, senderId, fileId, chunkNo));
+                    break;
+                case REMOVED:
+                    for (int chunkNo : ChunkList.decode(getBodyBuffer()))
+                        records.add(new RemovedMessage(version, senderId, fileId, chunkNo));
+                    break;
+                case GET_DELETED:
+                    records.add(new GetDeletedMessage(version, senderId, fileId));
+                    for (String id : new String(body, bodyOffset, bodyLength, StandardCharsets.US_ASCII).split(" "))
+                        if (!id.isEmpty())
+                            records.add(new GetDeletedMessage(version, senderId, id));
+                    break;
+                default:
+                    return Collections.singletonList(this);
+            }
+        } catch (IllegalArgumentException e) {
+            Logger.getGlobal().warning("Ignoring invalid batch: " + e.getLocalizedMessage());
+            records.clear();
+        }
+        return records;
     }
 
     /**
@@ -0,0 +1,126 @@
+package Common.messages;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * XOR parity of a group of PutChunk messages of the same file, sent through MDB after the group.
+ * A peer that received every chunk of the group but one rebuilds the missing chunk from the parity and the
+ * others, without waiting for it to be sent again.
+ * The version and replication degree in the header are the ones of the chunks of the group, and the chunk
+ * number is the one of its first chunk. The body is the list of the chunks of the group with their lengths,
+ * as ASCII "<chunkNo>:<length>" separated by commas and terminated by CRLF, followed by the XOR of their
+ * bodies, each padded with zeros to the length of the largest.
+ */
+public class ParityMessage extends Message {
+    private static final long serialVersionUID = 1L;
+    public static final int MAX_GROUP_SIZE = 16;
+
+    private int[] chunkNos;
+    private int[] lengths;
+    private int parityOffset;
+
+    public ParityMessage(Version version, int senderId, String fileId, int chunkNo, int replicationDeg) {
+        super(MessageType.PARITY);
+        this.setVersion(version);
+        this.setSenderId(senderId);
+        this.setFileId(fileId);
+        this.setChunkNo(chunkNo);
+        this.setReplicationDeg(replicationDeg);
+    }
+
+    /**
+     * @param chunkNos the chunks of the group
+     * @param lengths the length of the body of each chunk
+     * @param parity the XOR of the bodies of the chunks
+     * @param parityLength the length of the largest body
+     */
+    public ParityMessage(Version version, int senderId, String fileId, int replicationDeg, int[] chunkNos,
+                         int[] lengths, byte[] parity, int parityLength) {
+        this(version, senderId, fileId, chunkNos[0], replicationDeg);
+
+        StringBuilder group = new StringBuilder();
+        for (int i = 0; i < chunkNos.length; i++)
+            group.append(i > 0 ? "," : "").append(chunkNos[i]).append(':').append(lengths[i]);
+        group.append("\r\n");
+        byte[] header = group.toString().getBytes(StandardCharsets.US_ASCII);
+
+        byte[] body = new byte[header.length + parityLength];
+        System.arraycopy(header, 0, body, 0, header.length);
+        System.arraycopy(parity, 0, body, header.length, parityLength);
+        setBody(body);
+    }
+
+    /**
+     * @return the chunk numbers of the group
+     */
+    public int[] getChunkNos() {
+        parseGroup();
+        return chunkNos;
+    }
+
+    /**
+     * @return the length of the body of each chunk of the group
+     */
+    public int[] getLengths() {
+        parseGroup();
+        return lengths;
+    }
+
+    /**
+     * @return the XOR of the bodies of the chunks, without copying it
+     */
+    public ByteBuffer getParity() {
+        parseGroup();
+        ByteBuffer body = getBodyBuffer();
+        body.position(parityOffset);
+        return body.slice();
+    }
+
+    /**
+     * Reads the list of chunks at the start of the body
+     * @throws IllegalArgumentException if the list isn't valid
+     */
+    private void parseGroup() {
+        if (chunkNos != null)
+            return;
+
+        ByteBuffer body = getBodyBuffer();
+        int[] numbers = new int[2 * MAX_GROUP_SIZE];
+        int count = 0, value = -1;
+        while (true) {
+            if (!body.hasRemaining())
+                throw new IllegalArgumentException("Parity group not terminated");
+            byte b = body.get();
+            if (b >= '0' && b <= '9') {
+                if (value > 99999999)
+                    throw new IllegalArgumentException("Invalid parity group");
+                value = (value < 0 ? 0 : value * 10) + (b - '0');
+                continue;
+            }
+            if (value < 0 || count == numbers.length)
+                throw new IllegalArgumentException("Invalid parity group");
+            numbers[count++] = value;
+            value = -1;
+            if (b == '\r')
+                break;
+            // Chunk numbers are followed by ':' and lengths by ','
+            if (b != (count % 2 == 1 ? ':' : ','))
+                throw new IllegalArgumentException("Invalid parity group");
+        }
+        if (count % 2 != 0 || !body.hasRemaining() || body.get() != '\n')
+            throw new IllegalArgumentException("Invalid parity group");
+
+        int[] parsedChunkNos = new int[count / 2];
+        int[] parsedLengths = new int[count / 2];
+        for (int i = 0; i < count / 2; i++) {
+            parsedChunkNos[i] = numbers[2 * i];
+            parsedLengths[i] = numbers[2 * i + 1];
+            if (parsedLengths[i] > body.remaining())
+                throw new IllegalArgumentException("Parity shorter than chunk " + parsedChunkNos[i]);
+        }
+        parityOffset = body.position();
+        lengths = parsedLengths;
+        chunkNos = parsedChunkNos;
+    }
+}
@@ -11,15 +11,7 @@ public class PutChunkMessage extends Message {
         this.setBody(body);
     }
 
-    public byte[] getBytes() {
-        byte[] header = getHeader().getBytes();
-        byte[] message = new byte[header.length + this.getBody().length];
-        System.arraycopy(header, 0, message, 0, header.length);
-        System.arraycopy(this.getBody(), 0, message, header.length, this.getBody().length);
-        return message;
-    }
-
     public int getChunkSize() {
-        return getBody().length;
+        return getBodyLength();
     }
 }
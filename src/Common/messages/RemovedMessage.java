@@ -8,9 +8,4 @@ public class RemovedMessage extends Message {
         this.setFileId(fileId);
         this.setChunkNo(chunkNo);
     }
-
-    @Override
-    public byte[] getBytes() {
-        return getHeader().getBytes();
-    }
 }
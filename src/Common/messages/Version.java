@@ -1,6 +1,7 @@
 package Common.messages;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 /*
  * This is the version of the protocol. It is a three ASCII char sequence with the format <n>'.'<m>,
@@ -31,6 +32,38 @@ public class Version implements Serializable {
         this.m = m;
     }
 
+    /**
+     * @return the number of ASCII chars of the version
+     */
+    public int getEncodedLength() {
+        return unset ? 0 : Message.getEncodedLength(n) + 1 + Message.getEncodedLength(m);
+    }
+
+    /**
+     * Writes the version as ASCII chars
+     */
+    public void encode(ByteBuffer out) {
+        if (unset)
+            return;
+        Message.encode(out, n);
+        out.put((byte) '.');
+        Message.encode(out, m);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof Version) {
+            Version o = (Version) obj;
+            return o.unset == unset && o.n == n && o.m == m;
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return unset ? -1 : n * 31 + m;
+    }
+
     @Override
     public String toString() {
         return unset ? "" : this.n + "." + this.m;
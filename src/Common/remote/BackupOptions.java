@@ -0,0 +1,117 @@
+package Common.remote;
+
+import java.io.Serializable;
+
+/*
+ * Optional parameters of a backup request. Every field has a default value, so a client only has to set
+ * the ones it wants to change.
+ */
+public class BackupOptions implements Serializable {
+    private static final long serialVersionUID = 1L;
+    public static final int DEFAULT_WINDOW_SIZE = 10;
+    public static final int MAX_FRAGMENTS = 16;
+    public static final int MAX_PARITY_GROUP_SIZE = 16;
+
+    /*
+     * Maximum number of chunks sent and still waiting for the replication degree to be reached.
+     */
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+
+    /*
+     * If true, chunk boundaries are chosen from the content of the file instead of every 64000 bytes,
+     * so inserting or removing bytes doesn't change every following chunk.
+     */
+    private boolean contentDefinedChunking = false;
+
+    /*
+     * If true, the fileId is the root of the Merkle tree of the chunk hashes instead of the hash of the
+     * file name and modification date, so it identifies the content of the file.
+     */
+    private boolean contentHash = false;
+
+    /*
+     * If true, chunks are sent with version 1.1 of the protocol, compressed when that makes them smaller.
+     * Peers store and send back the compressed chunks as they are.
+     */
+    private boolean compression = false;
+
+    /*
+     * If dataFragments is not 0, each chunk is split in dataFragments fragments plus parityFragments
+     * Reed-Solomon parity fragments, each stored once by a different peer, instead of being replicated.
+     * The chunk can be rebuilt from any dataFragments of them.
+     */
+    private int dataFragments = 0;
+    private int parityFragments = 0;
+
+    /*
+     * If not 0, a Parity message with the XOR of every parityGroupSize chunks is sent after them, so peers
+     * that miss one chunk of the group rebuild it without waiting for it to be sent again.
+     */
+    private int parityGroupSize = 0;
+
+    public BackupOptions() { }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public void setWindowSize(int windowSize) {
+        if (windowSize < 1)
+            throw new IllegalArgumentException("Window size must be at least 1");
+        this.windowSize = windowSize;
+    }
+
+    public boolean isContentDefinedChunking() {
+        return contentDefinedChunking;
+    }
+
+    public void setContentDefinedChunking(boolean contentDefinedChunking) {
+        this.contentDefinedChunking = contentDefinedChunking;
+    }
+
+    public boolean isContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(boolean contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public boolean isErasureCoding() {
+        return dataFragments > 0;
+    }
+
+    public int getDataFragments() {
+        return dataFragments;
+    }
+
+    public int getParityFragments() {
+        return parityFragments;
+    }
+
+    public void setErasureCoding(int dataFragments, int parityFragments) {
+        if (dataFragments < 1 || parityFragments < 0 || dataFragments + parityFragments > MAX_FRAGMENTS)
+            throw new IllegalArgumentException("Erasure coding needs at least 1 data fragment and at most " +
+                    MAX_FRAGMENTS + " fragments");
+        this.dataFragments = dataFragments;
+        this.parityFragments = parityFragments;
+    }
+
+    public int getParityGroupSize() {
+        return parityGroupSize;
+    }
+
+    public void setParityGroupSize(int parityGroupSize) {
+        if (parityGroupSize < 0 || parityGroupSize > MAX_PARITY_GROUP_SIZE)
+            throw new IllegalArgumentException("Parity groups have at most " + MAX_PARITY_GROUP_SIZE + " chunks");
+        this.parityGroupSize = parityGroupSize;
+    }
+}
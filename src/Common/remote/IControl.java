@@ -6,8 +6,16 @@ import java.rmi.RemoteException;
 
 public interface IControl extends Remote {
     String backup (File file, int replicationDegree) throws RemoteException;
+    String backup (File file, int replicationDegree, BackupOptions options) throws RemoteException;
     String delete (File file) throws RemoteException;
     String restore (File file) throws RemoteException;
     String reclaim () throws RemoteException;
     String state () throws RemoteException;
+
+    /*
+     * Asynchronous operations: submit returns a job id right away, which is then used to follow or cancel the job.
+     */
+    String submitBackup (File file, int replicationDegree, BackupOptions options) throws RemoteException;
+    String status (String jobId) throws RemoteException;
+    String cancel (String jobId) throws RemoteException;
 }
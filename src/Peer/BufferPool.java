@@ -0,0 +1,52 @@
+package Peer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of buffers reused to encode the messages sent, so sending a chunk doesn't allocate a new array for it.
+ * Buffers are created when the pool is empty and only up to maxBuffers are kept after being released.
+ * Pooled buffers are direct, so the channels send them without copying.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     * @param size the minimum capacity of the buffer
+     * @return an empty buffer, that should be released after being used
+     */
+    public ByteBuffer acquire(int size) {
+        if (size > bufferSize)
+            return ByteBuffer.allocate(size);
+
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns the buffer to the pool
+     */
+    public void release(ByteBuffer buffer) {
+        // Buffers allocated for larger messages aren't pooled
+        if (buffer.capacity() != bufferSize)
+            return;
+        if (pooled.incrementAndGet() > maxBuffers) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        buffers.offer(buffer);
+    }
+}
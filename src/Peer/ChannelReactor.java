@@ -0,0 +1,203 @@
+package Peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * Event loop that reads every channel of the peer from a single thread: the multicast channels and the TCP
+ * connections chunks are restored through. Datagrams are read into a direct buffer, and TCP frames into a buffer
+ * of their connection, and handed to the ChannelReceiver of their channel, whose workers handle them.
+ * A connection whose receiver has no free packet stops being read, so TCP slows the sender down, and is read
+ * again once a worker frees a packet.
+ */
+public class ChannelReactor {
+    private final Selector selector;
+    private final ByteBuffer buffer;
+    // Connections that stopped being read until their receiver has a free packet
+    private final ConcurrentLinkedQueue<SelectionKey> paused = new ConcurrentLinkedQueue<>();
+    private Thread thread;
+
+    /**
+     * @param bufferSize the size of the largest datagram of any channel
+     */
+    public ChannelReactor(int bufferSize) throws IOException {
+        this.selector = Selector.open();
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Reads the datagrams of the channel, to be handled by the receiver
+     */
+    public void register(DatagramChannel channel, ChannelReceiver receiver) throws IOException {
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, receiver);
+    }
+
+    /**
+     * Accepts connections on the server channel. Each connection carries frames with the length of a message
+     * followed by the message, which are handed to the receiver as if they were datagrams.
+     */
+    public void register(ServerSocketChannel server, ChannelReceiver receiver) throws IOException {
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT, receiver);
+        receiver.setFreeListener(() -> {
+            if (!paused.isEmpty())
+                selector.wakeup();
+        });
+    }
+
+    public void start() {
+        thread = new Thread(this::run, "reactor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                Logger.getGlobal().severe("Couldn't wait for channels: " + e.getLocalizedMessage());
+                return;
+            }
+            resumeStreams();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept(key);
+                    else if (key.channel() instanceof DatagramChannel)
+                        receiveDatagrams(key);
+                    else readStream(key);
+                } catch (IOException e) {
+                    Logger.getGlobal().warning("Error reading channel: " + e.getLocalizedMessage());
+                    if (!(key.channel() instanceof DatagramChannel))
+                        close(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads every datagram waiting in the channel
+     */
+    private void receiveDatagrams(SelectionKey key) throws IOException {
+        DatagramChannel channel = (DatagramChannel) key.channel();
+        ChannelReceiver receiver = (ChannelReceiver) key.attachment();
+        while (true) {
+            buffer.clear();
+            if (channel.receive(buffer) == null)
+                return;
+            buffer.flip();
+            receiver.receive(buffer);
+        }
+    }
+
+    private void accept(SelectionKey key) throws IOException {
+        SocketChannel client = ((ServerSocketChannel) key.channel()).accept();
+        if (client == null)
+            return;
+        client.configureBlocking(false);
+        ChannelReceiver receiver = (ChannelReceiver) key.attachment();
+        client.register(selector, SelectionKey.OP_READ, new Stream(receiver, receiver.getBufferSize()));
+    }
+
+    /**
+     * Reads again the connections paused so far, starting with the frames they already sent. A connection
+     * paused again is left for the next time a packet is freed, which wakes the selector.
+     */
+    private void resumeStreams() {
+        for (int i = paused.size(); i > 0; i--) {
+            SelectionKey key = paused.poll();
+            if (key == null)
+                return;
+            if (!key.isValid())
+                continue;
+            key.interestOps(SelectionKey.OP_READ);
+            try {
+                readStream(key);
+            } catch (IOException e) {
+                Logger.getGlobal().warning("Error reading channel: " + e.getLocalizedMessage());
+                close(key);
+            }
+        }
+    }
+
+    /**
+     * Hands every complete frame read so far to the receiver, then reads what else the connection sent.
+     * When the receiver has no free packet, the connection stops being read until it has.
+     */
+    private void readStream(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        Stream stream = (Stream) key.attachment();
+        ByteBuffer data = stream.data;
+
+        while (true) {
+            data.flip();
+            boolean full = false;
+            while (data.remaining() >= DataPlane.FRAME_HEADER_SIZE) {
+                int length = data.getInt(data.position());
+                if (length <= 0 || length > data.capacity() - DataPlane.FRAME_HEADER_SIZE)
+                    throw new IOException("Invalid frame length " + length);
+                if (data.remaining() < DataPlane.FRAME_HEADER_SIZE + length)
+                    break;
+
+                int start = data.position();
+                int end = start + DataPlane.FRAME_HEADER_SIZE + length;
+                int limit = data.limit();
+                data.position(start + DataPlane.FRAME_HEADER_SIZE).limit(end);
+                full = !stream.receiver.offer(data);
+                data.limit(limit).position(full ? start : end);
+                if (full)
+                    break;
+            }
+            data.compact();
+
+            if (full) {
+                key.interestOps(0);
+                paused.add(key);
+                // A packet may have been freed before the connection was paused
+                if (stream.receiver.hasFreePackets())
+                    selector.wakeup();
+                return;
+            }
+
+            int read = client.read(data);
+            if (read < 0)
+                close(key);
+            if (read <= 0)
+                return;
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            Logger.getGlobal().warning("Couldn't close connection: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Frame being received from a connection
+     */
+    private static class Stream {
+        private final ChannelReceiver receiver;
+        private final ByteBuffer data;
+
+        private Stream(ChannelReceiver receiver, int maxMessageSize) {
+            this.receiver = receiver;
+            this.data = ByteBuffer.allocate(DataPlane.FRAME_HEADER_SIZE + maxMessageSize);
+        }
+    }
+}
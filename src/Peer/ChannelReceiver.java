@@ -0,0 +1,148 @@
+package Peer;
+
+import Common.messages.Message;
+
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Handles the datagrams of a channel. The thread reading the channel only copies datagrams to a bounded
+ * queue of packets allocated up front, and worker threads parse and handle them, so slow handlers never
+ * keep the channel from being read. When every packet is waiting for a worker the datagram is dropped and counted,
+ * while streams, which can wait, stop being read until a packet is free.
+ * A packet is reused as soon as its message is handled, so the message, whose body is a slice of the packet,
+ * is only valid during the call to the handler. Handlers that keep the message must copy its body first.
+ */
+public class ChannelReceiver {
+    private final String name;
+    private final int bufferSize;
+    private final int numWorkers;
+    private final Consumer<Message> handler;
+
+    // Packets received and waiting for a worker
+    private final ArrayBlockingQueue<DatagramPacket> received;
+    // Packets the receive thread can fill
+    private final ArrayBlockingQueue<DatagramPacket> free;
+
+    private final AtomicLong packetsReceived = new AtomicLong();
+    private final AtomicLong packetsDropped = new AtomicLong();
+    private volatile Runnable freeListener;
+
+    /**
+     * @param bufferSize the size of the largest datagram of the channel
+     * @param capacity maximum number of datagrams waiting for a worker
+     * @param numWorkers number of threads handling messages
+     * @param handler handles each message received
+     */
+    public ChannelReceiver(String name, int bufferSize, int capacity, int numWorkers, Consumer<Message> handler) {
+        this.name = name;
+        this.bufferSize = bufferSize;
+        this.numWorkers = numWorkers;
+        this.handler = handler;
+        this.received = new ArrayBlockingQueue<>(capacity);
+        this.free = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < capacity; i++)
+            free.add(new DatagramPacket(new byte[bufferSize], bufferSize));
+    }
+
+    /**
+     * Starts the workers
+     */
+    public void start() {
+        for (int i = 0; i < numWorkers; i++)
+            new Thread(this::handleMessages, name + "-worker-" + i).start();
+    }
+
+    /**
+     * Queues a datagram to be handled, called by the thread reading the channel
+     * @param datagram the datagram, copied before returning
+     */
+    public void receive(ByteBuffer datagram) {
+        if (datagram.remaining() > bufferSize || !offer(datagram))
+            packetsDropped.incrementAndGet();
+    }
+
+    /**
+     * Queues a message to be handled if there is a free packet, called by the thread reading a stream
+     * @param message the message, at most bufferSize bytes, copied before returning
+     * @return false if every packet is waiting for a worker, in which case the message isn't read
+     */
+    public boolean offer(ByteBuffer message) {
+        if (message.remaining() > bufferSize)
+            throw new IllegalArgumentException("Message larger than the " + name + " buffers");
+        DatagramPacket packet = free.poll();
+        if (packet == null)
+            return false;
+
+        int length = message.remaining();
+        message.get(packet.getData(), 0, length);
+        packet.setLength(length);
+        packetsReceived.incrementAndGet();
+        received.add(packet);   // never full, there are only as many packets as its capacity
+        return true;
+    }
+
+    /**
+     * @param listener called by the workers every time a packet is free again
+     */
+    public void setFreeListener(Runnable listener) {
+        this.freeListener = listener;
+    }
+
+    public boolean hasFreePackets() {
+        return !free.isEmpty();
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    private void handleMessages() {
+        while (true) {
+            DatagramPacket packet;
+            try {
+                packet = received.take();
+            } catch (InterruptedException e) {
+                Logger.getGlobal().warning(name + " worker interrupted: " + e.getLocalizedMessage());
+                return;
+            }
+
+            Message message = Message.parseMessage(packet);
+            if (message != null) {
+                try {
+                    handler.accept(message);
+                } catch (RuntimeException e) {
+                    Logger.getGlobal().warning("Error handling " + message.getMessageType() + " message: " + e.getLocalizedMessage());
+                }
+            }
+
+            // The message keeps its body in the packet buffer, so the packet is only reused once it was handled
+            free.add(packet);
+            Runnable listener = freeListener;
+            if (listener != null)
+                listener.run();
+        }
+    }
+
+    public int getQueueDepth() {
+        return received.size();
+    }
+
+    public long getPacketsReceived() {
+        return packetsReceived.get();
+    }
+
+    public long getPacketsDropped() {
+        return packetsDropped.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + " channel: " + getPacketsReceived() + " received, " + getQueueDepth() + " queued, " +
+                getPacketsDropped() + " dropped";
+    }
+}
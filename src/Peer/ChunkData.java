@@ -18,4 +18,8 @@ public class ChunkData {
     public byte[] getChunkData() {
         return chunkData;
     }
+
+    public int getLength() {
+        return chunkData.length;
+    }
 }
@@ -1,5 +1,7 @@
 package Peer;
 
+import Common.messages.Version;
+
 import java.io.Serializable;
 import java.util.HashSet;
 
@@ -9,6 +11,7 @@ public class ChunkMetadata implements Serializable {
     private int chunkNo;
     private int repDeg;
     private int chunkSize;
+    private Version version;    // version of the PutChunk message, which tells how the body is encoded
 
     public ChunkMetadata(String fileId, int chunkNo, int repDeg, int chunkSize) {
         this.peerIds = new HashSet<>();
@@ -42,6 +45,14 @@ public class ChunkMetadata implements Serializable {
         this.repDeg = repDeg;
     }
 
+    public Version getVersion() {
+        return version == null ? Peer.PROTOCOL_VERSION : version;
+    }
+
+    public void setVersion(Version version) {
+        this.version = version;
+    }
+
     public HashSet<Integer> getPeerIds() {
         return peerIds;
     }
@@ -0,0 +1,127 @@
+package Peer;
+
+import Common.remote.BackupOptions;
+
+import java.io.Serializable;
+
+/**
+ * A chunk of a backed up file: the range of the file it covers, the hash of its content and where it is stored.
+ * A chunk whose content was already backed up is stored under the fileId and chunkNo of the first copy.
+ */
+public class ChunkRef implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final long offset;
+    private final int length;
+    private byte[] hash;
+    private String fileId;
+    private int chunkNo;
+    private boolean encoded;    // stored with a version 1.1 body, with the codec before the content
+    private int dataFragments;  // 0 if the chunk is replicated, otherwise stored as Reed-Solomon fragments
+    private int parityFragments;
+    private int repDeg;         // copies the chunk can lose, plus one: the replication degree, or parity fragments + 1
+
+    public ChunkRef(long offset, int length) {
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public byte[] getHash() {
+        return hash;
+    }
+
+    public void setHash(byte[] hash) {
+        this.hash = hash;
+    }
+
+    public String getHashHex() {
+        return Utils.toHex(hash);
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public int getChunkNo() {
+        return chunkNo;
+    }
+
+    /**
+     * Sets where the chunk is stored
+     */
+    public void setLocation(String fileId, int chunkNo) {
+        this.fileId = fileId;
+        this.chunkNo = chunkNo;
+    }
+
+    public boolean isEncoded() {
+        return encoded;
+    }
+
+    public void setEncoded(boolean encoded) {
+        this.encoded = encoded;
+    }
+
+    public boolean isErasureCoded() {
+        return dataFragments > 0;
+    }
+
+    public int getDataFragments() {
+        return dataFragments;
+    }
+
+    public int getParityFragments() {
+        return parityFragments;
+    }
+
+    public void setErasureCoding(int dataFragments, int parityFragments) {
+        this.dataFragments = dataFragments;
+        this.parityFragments = parityFragments;
+    }
+
+    /**
+     * @return the degree the chunk was stored with, 0 if it isn't known
+     */
+    public int getRepDeg() {
+        return repDeg;
+    }
+
+    public void setRepDeg(int repDeg) {
+        this.repDeg = repDeg;
+    }
+
+    /**
+     * Fragments are stored as chunks of the same fileId, numbered from chunkNo * MAX_FRAGMENTS
+     * @param fragment the index of the fragment, data fragments first
+     * @return the chunkNo the fragment is stored with
+     */
+    public int getFragmentNo(int fragment) {
+        return getFragmentNo(chunkNo, fragment);
+    }
+
+    public static int getFragmentNo(int chunkNo, int fragment) {
+        return chunkNo * BackupOptions.MAX_FRAGMENTS + fragment;
+    }
+
+    /**
+     * @return the chunkNo of the chunk the fragment stored with the given chunkNo belongs to
+     */
+    public static int getStripeNo(int fragmentNo) {
+        return fragmentNo / BackupOptions.MAX_FRAGMENTS;
+    }
+
+    /**
+     * Concatenates the fileId and ChunkNo of the stored chunk
+     * @return the chunk unique identifier
+     */
+    public String getChunkUID() {
+        return fileId + chunkNo;
+    }
+}
@@ -0,0 +1,72 @@
+package Peer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Streams the chunks of a file straight from disk, one at a time.
+ * Only the chunks currently being sent are kept in memory, so the heap used by a backup
+ * depends on the send window and not on the size of the file.
+ */
+public class ChunkSource implements Closeable {
+    private final FileChannel channel;
+    private final long fileSize;
+    private final List<ChunkRef> chunks;
+    private int nextChunk = 0;
+
+    /**
+     * Streams the given chunks of the file, each one read from its offset and sent with its chunkNo
+     */
+    public ChunkSource(Path path, List<ChunkRef> chunks) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.fileSize = channel.size();
+        this.chunks = chunks;
+    }
+
+    public boolean hasNext() {
+        return nextChunk < chunks.size();
+    }
+
+    /**
+     * Reads the next chunk of the file
+     * @return chunk with a body of its exact length
+     */
+    public ChunkData next() throws IOException {
+        ChunkRef ref = chunks.get(nextChunk);
+        ChunkData chunk = new ChunkData(ref.getChunkNo(), read(ref.getOffset(), ref.getLength()));
+        nextChunk++;
+        return chunk;
+    }
+
+    /**
+     * Reads a range of the file with a positional read, without moving the stream position
+     */
+    private byte[] read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("File truncated while reading at " + position);
+        }
+
+        return buffer.array();
+    }
+
+    public int getNumChunks() {
+        return chunks.size();
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
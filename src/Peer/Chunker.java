@@ -0,0 +1,213 @@
+package Peer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits a file in chunks and hashes the content of each one.
+ * Chunks can either have a fixed size, or have their boundaries chosen from the content of the file with a
+ * rolling hash (FastCDC), so that inserting or removing bytes only changes the chunks around the change.
+ * Chunks are hashed in parallel on a fork-join pool while the boundaries are still being found.
+ */
+public class Chunker {
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+    private static final int HASH_BUFFER_SIZE = 1 << 16;
+    private static final int HASH_BATCH_SIZE = 16;         // chunks hashed by each task
+
+    // Content-defined chunking parameters, chunks are never bigger than the protocol chunk size
+    private static final int CDC_MIN_SIZE = 4096;
+    private static final int CDC_AVG_SIZE = 16384;
+    private static final long CDC_MASK_S = ((1L << 16) - 1) << 48;  // harder to match before the average size
+    private static final long CDC_MASK_L = ((1L << 12) - 1) << 52;  // easier to match after the average size
+
+    // Random values of the gear hash, fixed so that all backups choose the same boundaries
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x5344495346455550L);
+        for (int i = 0; i < GEAR.length; i++)
+            GEAR[i] = random.nextLong();
+    }
+
+    /**
+     * Splits the file in chunks and hashes them
+     * @param path path of the file
+     * @param chunkSize the max size of each chunk
+     * @param contentDefined true to choose the boundaries from the content, false for fixed size chunks
+     * @return the chunks of the file, in order, without location
+     */
+    public static List<ChunkRef> split(Path path, int chunkSize, boolean contentDefined) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            HashQueue queue = new HashQueue(channel);
+
+            if (contentDefined) findBoundaries(channel, chunkSize, queue);
+            else {
+                long size = channel.size();
+                // Fixed size files always end with a chunk smaller than the chunk size, even if empty
+                for (long offset = 0; offset <= size; offset += chunkSize)
+                    queue.add(new ChunkRef(offset, (int) Math.min(chunkSize, size - offset)));
+            }
+
+            return queue.join();
+        } catch (RuntimeException e) {
+            // The hashing tasks wrap read errors, and joining them may wrap the exception again
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause())
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+            throw e;
+        }
+    }
+
+    /**
+     * Finds the content-defined boundaries of the chunks, reading the file sequentially with a small buffer
+     */
+    private static void findBoundaries(FileChannel channel, int chunkSize, HashQueue chunks) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        byte[] data = buffer.array();
+        long chunkStart = 0;
+        int length = 0;
+        long hash = 0;
+        int read;
+
+        while ((read = channel.read(buffer)) >= 0) {
+            for (int i = 0; i < read; i++) {
+                length++;
+                boolean cut = length >= chunkSize;
+                if (length > CDC_MIN_SIZE) {
+                    hash = (hash << 1) + GEAR[data[i] & 0xff];
+                    cut |= (hash & (length < CDC_AVG_SIZE ? CDC_MASK_S : CDC_MASK_L)) == 0;
+                }
+
+                if (cut) {
+                    chunks.add(new ChunkRef(chunkStart, length));
+                    chunkStart += length;
+                    length = 0;
+                    hash = 0;
+                }
+            }
+            buffer.clear();
+        }
+
+        if (length > 0)
+            chunks.add(new ChunkRef(chunkStart, length));
+    }
+
+    /**
+     * Computes the root of the Merkle tree of the chunk hashes, which identifies the whole content of the file
+     * @param chunks the chunks of the file, in order, already hashed
+     * @return the root hash
+     */
+    public static byte[] merkleRoot(List<ChunkRef> chunks) {
+        MessageDigest digest = Utils.getDigest();
+        if (chunks.isEmpty())
+            return digest.digest();
+
+        ArrayList<byte[]> level = new ArrayList<>();
+        for (ChunkRef chunk : chunks)
+            level.add(chunk.getHash());
+
+        while (level.size() > 1) {
+            ArrayList<byte[]> parents = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += 2) {
+                if (i + 1 == level.size()) {
+                    parents.add(level.get(i));      // an odd node is promoted to the next level
+                } else {
+                    digest.update((byte) 1);        // distinguishes inner nodes from chunk hashes
+                    digest.update(level.get(i));
+                    digest.update(level.get(i + 1));
+                    parents.add(digest.digest());
+                }
+            }
+            level = parents;
+        }
+        return level.get(0);
+    }
+
+    /**
+     * Collects the chunks in order and hands them to the fork-join pool in batches, as soon as each batch is full
+     */
+    private static class HashQueue {
+        private final FileChannel channel;
+        private final ArrayList<ChunkRef> chunks = new ArrayList<>();
+        private final ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+        private int submitted = 0;
+
+        private HashQueue(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private void add(ChunkRef chunk) {
+            chunks.add(chunk);
+            if (chunks.size() - submitted >= HASH_BATCH_SIZE)
+                submit();
+        }
+
+        private void submit() {
+            List<ChunkRef> batch = new ArrayList<>(chunks.subList(submitted, chunks.size()));
+            tasks.add(ForkJoinPool.commonPool().submit(new HashChunks(channel, batch)));
+            submitted = chunks.size();
+        }
+
+        /**
+         * Waits for every chunk to be hashed
+         * @return all chunks, in order
+         */
+        private List<ChunkRef> join() {
+            if (submitted < chunks.size())
+                submit();
+            for (ForkJoinTask<?> task : tasks)
+                task.join();
+            return chunks;
+        }
+    }
+
+    /**
+     * Reads and hashes a batch of chunks with positional reads, so batches can run at the same time
+     */
+    private static class HashChunks extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final FileChannel channel;
+        private final List<ChunkRef> chunks;
+
+        private HashChunks(FileChannel channel, List<ChunkRef> chunks) {
+            this.channel = channel;
+            this.chunks = chunks;
+        }
+
+        @Override
+        protected void compute() {
+            MessageDigest digest = Utils.getDigest();
+            ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+
+            try {
+                for (ChunkRef chunk : chunks) {
+                    long position = chunk.getOffset();
+                    long end = chunk.getOffset() + chunk.getLength();
+                    while (position < end) {
+                        buffer.clear();
+                        buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                        int read = channel.read(buffer, position);
+                        if (read < 0)
+                            throw new IOException("File truncated while hashing at " + position);
+                        digest.update(buffer.array(), 0, read);
+                        position += read;
+                    }
+                    chunk.setHash(digest.digest());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
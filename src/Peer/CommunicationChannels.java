@@ -1,19 +1,23 @@
 package Peer;
 
 import Common.messages.*;
+import Peer.protocols.RestoreSink;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Set;
 import java.util.logging.Logger;
 
 public class CommunicationChannels {
     private final Peer peer;
     private final int CHUNKSIZE;
-    private final Thread controlChannelThread;
-    private final Thread dataChannelThread;
-    private final Thread recoveryChannelThread;
+    private final int CONTROL_BUFFER_SIZE = 256 + ChunkList.MAX_LENGTH;  // header and the records of a batch
+    private final int DATA_HEADER_SIZE = 1024;    // header, and the list of chunks of a parity group
+    private final int QUEUE_CAPACITY = 256;       // control datagrams waiting for a worker
+    private final int DATA_QUEUE_CAPACITY = 64;   // chunk datagrams waiting for a worker
+    private final ChannelReceiver controlChannel;
+    private final ChannelReceiver dataChannel;
+    private final ChannelReceiver recoveryChannel;
+    private final FecDecoder fecDecoder = new FecDecoder(this::handlePutChunk);
 
     /**
      * Constructor for communication channels
@@ -25,95 +29,76 @@ public class CommunicationChannels {
         this.peer = peer;
         this.CHUNKSIZE = chunkSize;
 
-        controlChannelThread = new Thread(() -> {
-            handleControlChannel();
-        });
-
-        dataChannelThread = new Thread(() -> {
-            handleDataChannel();
-        });
-
-        recoveryChannelThread = new Thread(() -> {
-            handleRecoveryChannel();
-        });
+        // Control and recovery messages are handled by a single worker, in the order they arrive, since their
+        // handlers keep state that isn't thread safe. PutChunk messages only schedule the storage of the chunk.
+        controlChannel = new ChannelReceiver("MC", CONTROL_BUFFER_SIZE, QUEUE_CAPACITY, 1, this::handleControlChannel);
+        dataChannel = new ChannelReceiver("MDB", CHUNKSIZE + DATA_HEADER_SIZE, DATA_QUEUE_CAPACITY, 2, this::handleDataChannel);
+        recoveryChannel = new ChannelReceiver("MDR", CHUNKSIZE + 256, DATA_QUEUE_CAPACITY, 1, this::handleRecoveryChannel);
     }
 
-    public Thread getControlChannelThread() {
-        return controlChannelThread;
+    public ChannelReceiver getControlChannel() {
+        return controlChannel;
     }
 
-    public Thread getDataChannelThread() {
-        return dataChannelThread;
+    public ChannelReceiver getDataChannel() {
+        return dataChannel;
     }
 
-    public Thread getRecoveryChannelThread() {
-        return recoveryChannelThread;
+    public ChannelReceiver getRecoveryChannel() {
+        return recoveryChannel;
     }
 
     /**
      * Handle protocols channel messages
      */
-    private void handleControlChannel() {
-        byte[] buffer = new byte[256];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    private void handleControlChannel(Message message) {
+        Logger.getGlobal().info("Received message on MC Channel: " + message.getMessageType() + " by peer " + message.getSenderId());
+
+        try {
+            // Batched messages are handled as if each record came in its own message
+            for (Message record : message.getRecords())
+                handleControlMessage(record);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
 
-        while (true) {
-            try {
-                peer.getMcSocket().receive(packet);
-                Message message = Message.parseMessage(packet);
-
-                Logger.getGlobal().info("Received message on MC Channel: " + message.getMessageType() + " by peer " + message.getSenderId());
-
-                // Stores all peers that have the given chunk. Must be done even if the senderId == peerId
-                synchronized (peer.getChunkCount()) {
-                    if (message instanceof StoredMessage) {
-                        ChunkMetadata metadata = peer.getChunkCount().get(message.getChunkUID());
-                        if (metadata != null) {
-                            metadata.getPeerIds().add(message.getSenderId());
-                            peer.getChunkCount().put(message.getChunkUID(), metadata);
-                            peer.saveChunkCountToDisk();
-                        }
-                        // Unlists the peer from chunk. Must be done even if the senderId == peerId
-                    } else if (message instanceof RemovedMessage) {
-                        peer.MessageUtils.handleRemovedMessage((RemovedMessage) message);
-                    }
+    /**
+     * Handles a control message with a single record
+     */
+    private void handleControlMessage(Message message) throws IOException, InterruptedException {
+        // Stores all peers that have the given chunk. Must be done even if the senderId == peerId
+        synchronized (peer.getChunkCount()) {
+            if (message instanceof StoredMessage) {
+                ChunkMetadata metadata = peer.getChunkCount().get(message.getChunkUID());
+                if (metadata != null) {
+                    metadata.getPeerIds().add(message.getSenderId());
+                    peer.getChunkCount().put(message.getChunkUID(), metadata);
+                    peer.saveChunkCountToDisk();
                 }
+                // Unlists the peer from chunk. Must be done even if the senderId == peerId
+            } else if (message instanceof RemovedMessage) {
+                peer.MessageUtils.handleRemovedMessage((RemovedMessage) message);
+            }
+        }
 
-                if (message.getSenderId() == peer.getPeerId()) {
-                    continue;
-                }
-                if (message instanceof StoredMessage) {
-                    if (peer.isInitiatorPeer) {
-                        //store sent ack
-                        synchronized (peer.getAcks()) {
-                            HashSet<Integer> set = peer.getAcks().getOrDefault(message.getFileId(), new HashSet<>());
-                            set.add(message.getChunkNo());
-                            peer.getAcks().putIfAbsent(message.getFileId(), set);
-                        }
-                    } else {
-                        synchronized (peer.getChunkCount()) {
-                            ChunkMetadata metadata = peer.getChunkCount().get(message.getChunkUID());
-                            if (metadata != null) {
-                                metadata.getPeerIds().add(message.getSenderId());
-                                peer.getChunkCount().putIfAbsent(message.getFileId() + message.getChunkNo(), metadata);
-                                peer.saveChunkCountToDisk();
-                            }
-                        }
-                    }
-                } else if (message instanceof DeleteMessage) {
-                    peer.MessageUtils.handleDeleteMessage((DeleteMessage) message);
-                } else if (message instanceof GetChunkMessage) {
-                    peer.MessageUtils.handleGetChunkMessage((GetChunkMessage) message);
-                } else if (message instanceof GetDeletedMessage) {
-                    synchronized (peer.getDeletedFiles()) {
-                        if (peer.getDeletedFiles().contains(message.getFileId())) {
-                            DeleteMessage delMessage = new DeleteMessage(Peer.PROTOCOL_VERSION, peer.getPeerId(), message.getFileId());
-                            peer.MessageUtils.sendMessage(delMessage);
-                        }
-                    }
+        if (message.getSenderId() == peer.getPeerId()) {
+            return;
+        }
+        if (message instanceof StoredMessage) {
+            // Completes the chunk as soon as it reaches its replication degree. Each backup session
+            // tracks its own chunks, so it doesn't depend on this peer being the only initiator
+            peer.getPendingChunks().stored(message.getChunkUID(), message.getSenderId());
+        } else if (message instanceof DeleteMessage) {
+            peer.MessageUtils.handleDeleteMessage((DeleteMessage) message);
+        } else if (message instanceof GetChunkMessage) {
+            peer.MessageUtils.handleGetChunkMessage((GetChunkMessage) message);
+        } else if (message instanceof GetDeletedMessage) {
+            synchronized (peer.getDeletedFiles()) {
+                if (peer.getDeletedFiles().contains(message.getFileId())) {
+                    DeleteMessage delMessage = new DeleteMessage(Peer.PROTOCOL_VERSION, peer.getPeerId(), message.getFileId());
+                    peer.MessageUtils.sendMessage(delMessage);
                 }
-            } catch (IOException | InterruptedException e) {
-                e.printStackTrace();
             }
         }
     }
@@ -121,68 +106,76 @@ public class CommunicationChannels {
     /**
      * Handle data channel messages
      */
-    private void handleDataChannel() {
-        byte[] buffer = new byte[CHUNKSIZE + 256];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-
-        while (true) {
+    private void handleDataChannel(Message message) {
+        Logger.getGlobal().info("Received message on MDB Channel: " + message.getMessageType() + " by peer " + message.getSenderId());
+
+        if (message instanceof PutChunkMessage) {
+            // The chunk is kept after this returns, to be stored later and to rebuild others, so it gets its own copy
+            message.getBody();
+            if (message.getSenderId() != peer.getPeerId())
+                fecDecoder.received((PutChunkMessage) message);
+            handlePutChunk((PutChunkMessage) message);
+        } else if (message instanceof ParityMessage && message.getSenderId() != peer.getPeerId()) {
             try {
-                peer.getMdbSocket().receive(packet);
-
-                Message message = Message.parseMessage(packet);
-                Logger.getGlobal().info("Received message on MDB Channel: " + message.getMessageType() + " by peer " + message.getSenderId());
+                fecDecoder.received((ParityMessage) message);
+            } catch (IllegalArgumentException e) {
+                Logger.getGlobal().warning("Ignoring invalid parity: " + e.getLocalizedMessage());
+            }
+        }
+    }
 
-                if (message instanceof PutChunkMessage) {
-                    peer.getChunkCount().put(message.getChunkUID(),
-                            new ChunkMetadata(message.getFileId(), message.getChunkNo(), message.getReplicationDeg(), ((PutChunkMessage) message).getChunkSize()));
-                    peer.saveChunkCountToDisk();
-                    peer.MessageUtils.handlePutChunkMessage((PutChunkMessage) message);
+    /**
+     * Handles a PutChunk message, received or rebuilt from the parity of its group
+     */
+    private void handlePutChunk(PutChunkMessage message) {
+        try {
+            // The peers that already confirmed they store the chunk are kept, a PutChunk sent again doesn't
+            // make them drop it
+            synchronized (peer.getChunkCount()) {
+                ChunkMetadata metadata = peer.getChunkCount().get(message.getChunkUID());
+                if (metadata == null) {
+                    metadata = new ChunkMetadata(message.getFileId(), message.getChunkNo(),
+                            message.getReplicationDeg(), message.getChunkSize());
+                    peer.getChunkCount().put(message.getChunkUID(), metadata);
                 }
-
-            } catch (IOException e) {
-                e.printStackTrace();
+                metadata.setRepDeg(message.getReplicationDeg());
+                metadata.setVersion(message.getVersion());
+                peer.saveChunkCountToDisk();
             }
+            peer.MessageUtils.handlePutChunkMessage(message);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
+    public FecDecoder getFecDecoder() {
+        return fecDecoder;
+    }
+
     /**
      * Handle data recovery channel messages
      */
-    private void handleRecoveryChannel() {
-        byte[] buffer = new byte[CHUNKSIZE + 256];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-
-        while (true) {
-            try {
-                peer.getMdrSocket().receive(packet);
-
-                Message message = Message.parseMessage(packet);
-
-                Logger.getGlobal().info("Received message on MDR Channel: " + message.getMessageType());
-
-                if (message instanceof ChunkMessage) {
-                    handleChunkMessage((ChunkMessage)message);
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    private void handleRecoveryChannel(Message message) {
+        Logger.getGlobal().info("Received message on MDR Channel: " + message.getMessageType());
+
+        if (message instanceof ChunkMessage) {
+            handleChunkMessage((ChunkMessage)message);
+        } else if (message instanceof GetChunkMessage && message.getSenderId() != peer.getPeerId()) {
+            // Only sent through the connection of a peer restoring a file, to ask this peer alone
+            peer.MessageUtils.handleDirectGetChunkMessage((GetChunkMessage) message);
         }
     }
 
     public void handleChunkMessage(ChunkMessage message) {
-        if (peer.isInitiatorPeer) {
+        // The holders of the chunk waiting to answer it see it was sent
+        peer.MessageUtils.getElection().chunkSent(message.getChunkUID());
+
+        // Chunks of files that aren't being restored by this peer are ignored
+        Set<RestoreSink> sinks = peer.getRestoreSinks(message.getFileId());
+        if (sinks != null) {
             Logger.getGlobal().info("Recevied chunk from peer " + message.getSenderId());
-            HashMap<Integer, byte[]> chunk = peer.getRestore().getOrDefault(message.getFileId(), new HashMap<>());
-            chunk.put(message.getChunkNo(), message.getBody());
-            peer.getRestore().putIfAbsent(message.getFileId(), chunk);
-        } else {
-            //clear hashMap
-            if (message.getChunkNo() == 0 && peer.getChunksSent().containsKey(message.getFileId()))
-                peer.getChunksSent().get(message.getFileId()).clear();
-
-            HashSet<Integer> set = peer.getChunksSent().getOrDefault(message.getFileId(), new HashSet<>());
-            set.add(message.getChunkNo());
-            peer.getChunksSent().putIfAbsent(message.getFileId(), set);
+            for (RestoreSink sink : sinks)
+                sink.received(message);
         }
     }
 }
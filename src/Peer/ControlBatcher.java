@@ -0,0 +1,151 @@
+package Peer;
+
+import Common.messages.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces the control messages sent in a short time window. STORED, GETCHUNK and REMOVED messages of the
+ * same fileId are sent as a single message with the list of chunks in its body, and GET_DELETED messages as a
+ * single message with the list of fileIds. Batched messages use version 1.3 of the protocol, a message alone
+ * in its window is sent as it was given.
+ */
+public class ControlBatcher {
+    public static final int BATCH_WINDOW_MS = 20;
+
+    private final Peer peer;
+    private final HashMap<String, Batch> batches = new HashMap<>();
+
+    public ControlBatcher(Peer peer) {
+        this.peer = peer;
+    }
+
+    /**
+     * Sends the message with the other messages of its batch, at most BATCH_WINDOW_MS later.
+     * Other types of message are sent right away.
+     */
+    public void send(Message message) throws IOException {
+        String key;
+        switch (message.getMessageType()) {
+            case STORED:
+            case GETCHUNK:
+            case REMOVED:
+                key = message.getMessageType() + " " + message.getFileId();
+                break;
+            case GET_DELETED:
+                key = message.getMessageType().toString();
+                break;
+            default:
+                peer.MessageUtils.sendMessage(message);
+                return;
+        }
+
+        Batch full = null;
+        synchronized (this) {
+            Batch batch = batches.get(key);
+            // A batch is sent before its body grows past the size a receiver accepts
+            if (batch != null && !batch.fits(message)) {
+                batches.remove(key);
+                full = batch;
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new Batch(message);
+                batches.put(key, batch);
+                Utils.scheduleAction(() -> flush(key), BATCH_WINDOW_MS);
+            }
+            batch.add(message);
+        }
+        if (full != null)
+            full.send();
+    }
+
+    private void flush(String key) {
+        Batch batch;
+        synchronized (this) {
+            batch = batches.remove(key);
+        }
+        if (batch == null)
+            return;
+
+        try {
+            batch.send();
+        } catch (IOException e) {
+            Logger.getGlobal().warning("Couldn't send batch of " + key + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    private class Batch {
+        private final Message first;
+        private final TreeSet<Integer> chunkNos = new TreeSet<>();
+        private final LinkedHashSet<String> fileIds = new LinkedHashSet<>();
+        private int length = 0;     // upper bound of the length of the body
+
+        private Batch(Message first) {
+            this.first = first;
+        }
+
+        private void add(Message message) {
+            length += getRecordLength(message);
+            if (message.getMessageType() == Message.MessageType.GET_DELETED)
+                fileIds.add(message.getFileId());
+            else chunkNos.add(message.getChunkNo());
+        }
+
+        /**
+         * @return true if the message can be added without the body going over ChunkList.MAX_LENGTH bytes
+         */
+        private boolean fits(Message message) {
+            if (message.getMessageType() == Message.MessageType.GET_DELETED)
+                return length + getRecordLength(message) <= ChunkList.MAX_LENGTH;
+            return chunkNos.size() < ChunkList.MAX_CHUNKS && length + getRecordLength(message) <= ChunkList.MAX_LENGTH;
+        }
+
+        /**
+         * A fileId takes its length and a space. A chunk takes at most its digits and a separator, less if it
+         * extends a range.
+         */
+        private int getRecordLength(Message message) {
+            if (message.getMessageType() == Message.MessageType.GET_DELETED)
+                return fileIds.contains(message.getFileId()) ? 0 : message.getFileId().length() + 1;
+            return chunkNos.contains(message.getChunkNo()) ? 0 : Integer.toString(message.getChunkNo()).length() + 1;
+        }
+
+        private void send() throws IOException {
+            if (chunkNos.size() <= 1 && fileIds.size() <= 1) {
+                peer.MessageUtils.sendMessage(first);
+                return;
+            }
+
+            Message message;
+            switch (first.getMessageType()) {
+                case STORED:
+                    message = new StoredMessage(Peer.BATCH_VERSION, peer.getPeerId(), first.getFileId(), chunkNos.first());
+                    break;
+                case GETCHUNK:
+                    message = new GetChunkMessage(Peer.BATCH_VERSION, peer.getPeerId(), first.getFileId(), chunkNos.first());
+                    break;
+                case REMOVED:
+                    message = new RemovedMessage(Peer.BATCH_VERSION, peer.getPeerId(), first.getFileId(), chunkNos.first());
+                    break;
+                default:
+                    // The first fileId goes in the header, the others in the body
+                    StringBuilder others = new StringBuilder();
+                    for (String fileId : fileIds)
+                        if (!fileId.equals(first.getFileId()))
+                            others.append(others.length() > 0 ? " " : "").append(fileId);
+                    message = new GetDeletedMessage(Peer.BATCH_VERSION, peer.getPeerId(), first.getFileId());
+                    message.setBody(others.toString().getBytes(StandardCharsets.US_ASCII));
+                    peer.MessageUtils.sendMessage(message);
+                    return;
+            }
+            message.setBody(ChunkList.encode(chunkNos));
+            peer.MessageUtils.sendMessage(message);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package Peer;
+
+import Common.messages.Message;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Point-to-point connections used to send chunks straight to the peer that asked for them.
+ * There is a single long-lived TCP connection to each peer, shared by every chunk sent to it. Each message
+ * is sent as a frame: its length as a 4 byte integer followed by the message, encoded as in a datagram.
+ * Frames of different chunks are never interleaved, so many threads can send through the same connection.
+ * Chunks stored in files are sent with FileChannel.transferTo, after their header.
+ */
+public class DataPlane {
+    public static final int FRAME_HEADER_SIZE = 4;
+    private static final long IDLE_TIMEOUT_MS = 60000;
+
+    private final InetAddress host;
+    private final int portOffset;
+    private final BufferPool buffers;
+    private final ConcurrentHashMap<Integer, Connection> connections = new ConcurrentHashMap<>();
+
+    /**
+     * @param host address every peer listens on
+     * @param portOffset each peer listens on port portOffset + peerId
+     * @param buffers pool of buffers to encode the frames in
+     */
+    public DataPlane(InetAddress host, int portOffset, BufferPool buffers) {
+        this.host = host;
+        this.portOffset = portOffset;
+        this.buffers = buffers;
+        Utils.scheduleAction(this::closeIdleConnections, IDLE_TIMEOUT_MS);
+    }
+
+    /**
+     * Sends the message to the peer, connecting to it if there is no connection yet. A connection that
+     * fails is replaced by a new one once, in case the peer was restarted.
+     * @return false if the message couldn't be sent
+     */
+    public boolean send(int peerId, Message message) {
+        ByteBuffer frame = buffers.acquire(FRAME_HEADER_SIZE + message.getEncodedLength());
+        try {
+            frame.putInt(message.getEncodedLength());
+            message.encode(frame);
+            frame.flip();
+            return send(peerId, message, frame, null, 0);
+        } finally {
+            buffers.release(frame);
+        }
+    }
+
+    /**
+     * Sends the message with the content of the file as its body. Only the header of the message is encoded,
+     * the body is copied by the kernel from the file to the connection, so it never passes through the heap.
+     * @param message the message, without body
+     * @return false if the message couldn't be sent
+     */
+    public boolean sendFile(int peerId, Message message, Path path) {
+        ByteBuffer frame = buffers.acquire(FRAME_HEADER_SIZE + message.getEncodedLength());
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = file.size();
+            frame.putInt((int) (message.getEncodedLength() + size));
+            message.encode(frame);
+            frame.flip();
+            return send(peerId, message, frame, file, size);
+        } catch (IOException e) {
+            Logger.getGlobal().warning("Couldn't read " + path + ": " + e.getLocalizedMessage());
+            return false;
+        } finally {
+            buffers.release(frame);
+        }
+    }
+
+    /**
+     * Writes the frame, followed by the first bytes of the file, if there is one
+     */
+    private boolean send(int peerId, Message message, ByteBuffer frame, FileChannel file, long size) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Connection connection = null;
+            try {
+                connection = getConnection(peerId);
+                connection.write(frame.rewind(), file, size);
+                return true;
+            } catch (IOException e) {
+                Logger.getGlobal().warning("Couldn't send " + message.getMessageType() + " to peer " + peerId +
+                        " through TCP: " + e.getLocalizedMessage());
+                if (connection != null)
+                    close(peerId, connection);
+            }
+        }
+        return false;
+    }
+
+    private Connection getConnection(int peerId) throws IOException {
+        Connection connection = connections.get(peerId);
+        if (connection != null)
+            return connection;
+
+        synchronized (this) {
+            connection = connections.get(peerId);
+            if (connection == null) {
+                connection = new Connection(SocketChannel.open(new InetSocketAddress(host, portOffset + peerId)));
+                connections.put(peerId, connection);
+                Logger.getGlobal().info("Connected to peer " + peerId + " through TCP");
+            }
+            return connection;
+        }
+    }
+
+    private void close(int peerId, Connection connection) {
+        connections.remove(peerId, connection);
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            Logger.getGlobal().warning("Couldn't close connection to peer " + peerId + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        for (Integer peerId : connections.keySet()) {
+            Connection connection = connections.get(peerId);
+            if (connection != null && now - connection.lastUsed > IDLE_TIMEOUT_MS)
+                close(peerId, connection);
+        }
+        Utils.scheduleAction(this::closeIdleConnections, IDLE_TIMEOUT_MS);
+    }
+
+    public int getNumConnections() {
+        return connections.size();
+    }
+
+    private static class Connection {
+        private final SocketChannel channel;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            channel.socket().setTcpNoDelay(true);
+        }
+
+        /**
+         * Writes the whole frame before any other thread can write to the connection
+         * @param file the rest of the frame, or null if the buffer has the whole frame
+         */
+        private synchronized void write(ByteBuffer frame, FileChannel file, long size) throws IOException {
+            while (frame.hasRemaining())
+                channel.write(frame);
+            for (long position = 0; position < size; ) {
+                long sent = file.transferTo(position, size - position, channel);
+                // The connection is left in the middle of a frame, so it can't be used anymore
+                if (sent == 0 && position >= file.size())
+                    throw new IOException("File shrank while being sent");
+                position += sent;
+            }
+            lastUsed = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package Peer;
+
+import Common.messages.ParityMessage;
+import Common.messages.PutChunkMessage;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Rebuilds PutChunk messages lost on MDB from the parity of their group. The last PutChunk messages received
+ * are kept, without copying their bodies, so that when a Parity message arrives with a single chunk of its
+ * group missing, the missing chunk is the XOR of the parity and the other chunks.
+ */
+public class FecDecoder {
+    private final int MAX_RECENT_CHUNKS = 64;
+
+    private final Consumer<PutChunkMessage> handler;
+    private long chunksRebuilt = 0;
+
+    // Last PutChunk messages received, by chunkUID, the oldest is dropped first
+    private final LinkedHashMap<String, PutChunkMessage> recent = new LinkedHashMap<String, PutChunkMessage>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PutChunkMessage> eldest) {
+            return size() > MAX_RECENT_CHUNKS;
+        }
+    };
+
+    /**
+     * @param handler handles each chunk rebuilt, as if it was received
+     */
+    public FecDecoder(Consumer<PutChunkMessage> handler) {
+        this.handler = handler;
+    }
+
+    public synchronized void received(PutChunkMessage message) {
+        recent.put(message.getChunkUID(), message);
+    }
+
+    /**
+     * Rebuilds the chunk of the group that wasn't received, if it's the only one
+     */
+    public void received(ParityMessage parity) {
+        int[] chunkNos = parity.getChunkNos();
+        int[] lengths = parity.getLengths();
+
+        PutChunkMessage[] group = new PutChunkMessage[chunkNos.length];
+        int missing = -1;
+        synchronized (this) {
+            for (int i = 0; i < chunkNos.length; i++) {
+                group[i] = recent.get(parity.getFileId() + chunkNos[i]);
+                if (group[i] != null)
+                    continue;
+                if (missing >= 0)
+                    return;     // a single parity can't rebuild more than one chunk
+                missing = i;
+            }
+        }
+        if (missing < 0)
+            return;
+
+        ByteBuffer parityBuffer = parity.getParity();
+        byte[] body = new byte[lengths[missing]];
+        parityBuffer.get(body);
+        for (int i = 0; i < group.length; i++) {
+            if (i == missing)
+                continue;
+            if (group[i].getBodyLength() != lengths[i]) {
+                Logger.getGlobal().warning("Chunk " + chunkNos[i] + " doesn't match its parity group");
+                return;
+            }
+            ByteBuffer chunk = group[i].getBodyBuffer();
+            for (int j = 0; j < body.length && j < lengths[i]; j++)
+                body[j] ^= chunk.get(j);
+        }
+
+        PutChunkMessage rebuilt = new PutChunkMessage(parity.getVersion(), parity.getSenderId(), parity.getFileId(),
+                chunkNos[missing], parity.getReplicationDeg(), body);
+        Logger.getGlobal().info("Rebuilt chunk " + rebuilt.getChunkNo() + " of " + rebuilt.getFileId() + " from its parity");
+        synchronized (this) {
+            chunksRebuilt++;
+        }
+        received(rebuilt);
+        handler.accept(rebuilt);
+    }
+
+    public synchronized long getChunksRebuilt() {
+        return chunksRebuilt;
+    }
+}
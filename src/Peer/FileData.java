@@ -1,16 +1,14 @@
 package Peer;
 
-import java.util.Queue;
-
 public class FileData {
     private String fileId;
     private int repDeg;
-    private Queue<ChunkData> chunkData;
+    private ChunkSource chunkSource;
 
-    public FileData(String fileId, int repDeg, Queue<ChunkData> chunkData) {
+    public FileData(String fileId, int repDeg, ChunkSource chunkSource) {
         this.fileId = fileId;
         this.repDeg = repDeg;
-        this.chunkData = chunkData;
+        this.chunkSource = chunkSource;
     }
 
     public String getFileId() {
@@ -29,11 +27,11 @@ public class FileData {
         this.repDeg = repDeg;
     }
 
-    public Queue<ChunkData> getChunkData() {
-        return chunkData;
+    public ChunkSource getChunkSource() {
+        return chunkSource;
     }
 
-    public void setChunkData(Queue<ChunkData> chunkData) {
-        this.chunkData = chunkData;
+    public void setChunkSource(ChunkSource chunkSource) {
+        this.chunkSource = chunkSource;
     }
 }
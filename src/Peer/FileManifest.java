@@ -0,0 +1,70 @@
+package Peer;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Lists, in order, the chunks that make up a backed up file, so it can be restored even when some of
+ * its chunks are stored under other files.
+ */
+public class FileManifest implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final String fileKey;
+    private final String fileName;
+    private final String fileId;
+    private final long fileSize;
+    private final boolean contentDefined;
+    private final ArrayList<ChunkRef> chunks = new ArrayList<>();
+
+    /**
+     * @param fileKey key used by the client operations to find the file (hash of name and modification date)
+     * @param fileName name of the file
+     * @param fileId id of the file in the protocol messages
+     * @param fileSize size of the file in bytes
+     * @param contentDefined true if chunk boundaries were chosen from the content of the file
+     */
+    public FileManifest(String fileKey, String fileName, String fileId, long fileSize, boolean contentDefined) {
+        this.fileKey = fileKey;
+        this.fileName = fileName;
+        this.fileId = fileId;
+        this.fileSize = fileSize;
+        this.contentDefined = contentDefined;
+    }
+
+    public String getFileKey() {
+        return fileKey;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public boolean isContentDefined() {
+        return contentDefined;
+    }
+
+    public List<ChunkRef> getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return the fileIds under which the chunks of this file are stored
+     */
+    public Set<String> getReferencedFileIds() {
+        Set<String> fileIds = new LinkedHashSet<>();
+        for (ChunkRef chunk : chunks)
+            fileIds.add(chunk.getFileId());
+        return fileIds;
+    }
+}
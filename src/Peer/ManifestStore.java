@@ -0,0 +1,130 @@
+package Peer;
+
+import java.io.*;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Stores the manifests of the files backed up by this peer and an index from chunk content hash to the
+ * location where that content is already stored, used to avoid sending the same chunk twice.
+ * Chunks of a deleted file are only deleted from the other peers when no other manifest references them.
+ */
+public class ManifestStore {
+    private final String path;
+
+    // Manifests of backed up files, by file key
+    private ConcurrentHashMap<String, FileManifest> manifests = new ConcurrentHashMap<>();
+
+    // Location of each chunk content already stored, by hash of the content
+    private ConcurrentHashMap<String, ChunkRef> index = new ConcurrentHashMap<>();
+
+    // FileIds of deleted files whose chunks are still referenced by other manifests
+    private HashSet<String> retainedFileIds = new HashSet<>();
+
+    public ManifestStore(String path) {
+        this.path = path;
+    }
+
+    public FileManifest get(String fileKey) {
+        return manifests.get(fileKey);
+    }
+
+    /**
+     * @param hash the hash of the chunk content
+     * @return the chunk already stored with the same content, or null if there is none
+     */
+    public ChunkRef lookup(byte[] hash) {
+        return index.get(Utils.toHex(hash));
+    }
+
+    /**
+     * Adds the manifest of a backed up file, replacing the previous one with the same key, and indexes the
+     * chunks stored under its fileId. A chunk replaces the indexed copy of its content if it has a higher degree.
+     * @param manifest the manifest of the file
+     * @param failedChunks numbers of the chunks that weren't stored, which are not indexed
+     */
+    public synchronized void add(FileManifest manifest, Set<Integer> failedChunks) {
+        manifests.put(manifest.getFileKey(), manifest);
+        retainedFileIds.remove(manifest.getFileId());
+        for (ChunkRef chunk : manifest.getChunks()) {
+            if (chunk.getFileId().equals(manifest.getFileId()) && !failedChunks.contains(chunk.getChunkNo()))
+                index.merge(chunk.getHashHex(), chunk, (old, stored) -> stored.getRepDeg() > old.getRepDeg() ? stored : old);
+        }
+    }
+
+    /**
+     * Removes the manifest of a file
+     * @param fileKey the key of the file
+     * @return the fileIds whose chunks are no longer referenced and can be deleted
+     */
+    public synchronized Set<String> remove(String fileKey) {
+        FileManifest manifest = manifests.remove(fileKey);
+        retainedFileIds.add(manifest == null ? fileKey : manifest.getFileId());
+
+        Set<String> referenced = new HashSet<>();
+        for (FileManifest m : manifests.values())
+            referenced.addAll(m.getReferencedFileIds());
+
+        Set<String> deletable = new HashSet<>();
+        for (Iterator<String> it = retainedFileIds.iterator(); it.hasNext(); ) {
+            String fileId = it.next();
+            if (!referenced.contains(fileId)) {
+                deletable.add(fileId);
+                it.remove();
+            }
+        }
+
+        index.values().removeIf(chunk -> deletable.contains(chunk.getFileId()));
+        return deletable;
+    }
+
+    public int size() {
+        return manifests.size();
+    }
+
+    public int getIndexSize() {
+        return index.size();
+    }
+
+    public synchronized void save() {
+        Logger.getGlobal().info("Saving manifests to disk");
+        try {
+            FileOutputStream fos = new FileOutputStream(path, false);
+            ObjectOutputStream oos = new ObjectOutputStream(fos);
+            oos.writeObject(manifests);
+            oos.writeObject(index);
+            oos.writeObject(retainedFileIds);
+            oos.flush();
+            oos.close();
+            fos.close();
+        } catch (FileNotFoundException e) {
+            Logger.getGlobal().warning("FileNotFoundException while saving manifests to disk: " + e.getLocalizedMessage());
+        } catch (IOException e) {
+            Logger.getGlobal().warning("IOException while saving manifests to disk: " + e.getLocalizedMessage());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized void load() {
+        if (!new File(path).exists()) return;
+        try {
+            Logger.getGlobal().info("Loading manifests from disk");
+            FileInputStream fis = new FileInputStream(path);
+            ObjectInputStream ois = new ObjectInputStream(fis);
+            manifests = (ConcurrentHashMap<String, FileManifest>) ois.readObject();
+            index = (ConcurrentHashMap<String, ChunkRef>) ois.readObject();
+            retainedFileIds = (HashSet<String>) ois.readObject();
+            ois.close();
+            fis.close();
+        } catch (FileNotFoundException e) {
+            Logger.getGlobal().warning("FileNotFoundException while loading manifests from disk: " + e.getLocalizedMessage());
+        } catch (IOException e) {
+            Logger.getGlobal().warning("IOException while loading manifests from disk: " + e.getLocalizedMessage());
+        } catch (ClassNotFoundException e) {
+            Logger.getGlobal().warning("ClassNotFoundException while loading manifests from disk: " + e.getLocalizedMessage());
+        }
+    }
+}
@@ -1,56 +1,133 @@
 package Peer;
 
 import Common.messages.*;
+import Common.remote.BackupOptions;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 public class MessageUtils {
     private final Peer peer;
     private final int NUMBER_TRIES;
+    private final int SEND_BUFFER_SIZE = 65536;     // enough for any datagram
+    private final long FALLBACK_STEP_MS = 100;      // time a holder waits for the one ranked above it to answer
+    private final BufferPool sendBuffers = new BufferPool(SEND_BUFFER_SIZE, 32);
+    private final TokenBucket dataBucket;       // PutChunk messages sent through MDB
+    private final TokenBucket recoveryBucket;   // Chunk messages sent through MDR
+    private final DataPlane dataPlane;
+    private final ResponderElection election;
     private PutChunkMessage lastPutChunkReceived; // To handleDeleteMessage know if was received before sending
 
-    public MessageUtils(Peer peer, int numberOfTries) {
+    /**
+     * @param bandwidth bytes per second that can be sent through each data channel
+     * @param chunkSize the rate never goes below a chunk per second and grows by a chunk per second at a time
+     */
+    public MessageUtils(Peer peer, int numberOfTries, long bandwidth, int chunkSize) {
         this.peer = peer;
         this.NUMBER_TRIES = numberOfTries;
+        this.dataBucket = new TokenBucket("MDB", bandwidth, chunkSize, chunkSize);
+        this.recoveryBucket = new TokenBucket("MDR", bandwidth, chunkSize, chunkSize);
+        this.dataPlane = new DataPlane(InetAddress.getLoopbackAddress(), Peer.TCP_PORT_OFFSET, sendBuffers);
+        this.election = new ResponderElection(peer.getPeerId(), FALLBACK_STEP_MS);
     }
 
     public void handleGetChunkMessage(GetChunkMessage message) throws InterruptedException, IOException {
         // tenho ? -> obtenho o chunk se não aborta
-        File file = new File(peer.getFileSystemPath() + File.separator + message.getFileId());
-        if(!file.exists())
+        File chunk = getStoredChunk(message);
+        if (chunk == null)
             return;
 
-        File chunk = new File(peer.getFileSystemPath() + File.separator + message.getFileId() + File.separator + message.getChunkNo());
-        if(!chunk.exists())
+        // The holders answer in the order of their rank, and only if none above them did. A chunk sent shortly
+        // before is asked again because it was lost on the way, so only the holder ranked first answers it again
+        long since = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(peer.DELAY_MS);
+        String chunkUID = message.getChunkUID();
+        long delay = election.getDelay(chunkUID, getHolders(chunkUID));
+        if (delay == 0) {
+            Utils.execute(() -> multicastChunk(message, chunk));
             return;
-
+        }
         Utils.scheduleAction(() -> {
-            // verificar se entretanto já alguem enviou
-            // se sim, aborta, se não envio
-            if(peer.getChunksSent().containsKey(message.getFileId())) {
-                if (peer.getChunksSent().get(message.getFileId()).contains(message.getChunkNo())) {
-                    return;
-                }
+            if (election.sentSince(chunkUID, since)) {
+                Logger.getGlobal().info("Chunk " + message.getChunkNo() + " was already sent by another peer");
+                return;
             }
-            try {
-                //send message STORED chunk
-                ChunkMessage chunkMessage = new ChunkMessage(Peer.PROTOCOL_VERSION, peer.getPeerId(), message.getFileId(),
-                        message.getChunkNo(), Files.readAllBytes(chunk.toPath()));
-                if (!sendThroughTCP(message, chunkMessage, false))
-                    sendMessage(chunkMessage);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }, (long )(Math.random() * peer.DELAY_MS));
+            Utils.execute(() -> multicastChunk(message, chunk));
+        }, delay);
+    }
+
+    /**
+     * @return the peers that confirmed they store the chunk
+     */
+    private Set<Integer> getHolders(String chunkUID) {
+        HashSet<Integer> holders = new HashSet<>();
+        synchronized (peer.getChunkCount()) {
+            ChunkMetadata metadata = peer.getChunkCount().get(chunkUID);
+            if (metadata != null)
+                holders.addAll(metadata.getPeerIds());
+        }
+        return holders;
+    }
+
+    /**
+     * Sends the chunk through MDR, where the other holders see it and don't answer the same request
+     */
+    private void multicastChunk(GetChunkMessage message, File chunk) {
+        try {
+            sendMessage(new ChunkMessage(Peer.PROTOCOL_VERSION, peer.getPeerId(), message.getFileId(),
+                    message.getChunkNo(), Files.readAllBytes(chunk.toPath())));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public ResponderElection getElection() {
+        return election;
+    }
+
+    /**
+     * Answers a GetChunk message sent only to this peer, through its connection, right away since no other
+     * peer was asked for the chunk
+     */
+    public void handleDirectGetChunkMessage(GetChunkMessage message) {
+        File chunk = getStoredChunk(message);
+        if (chunk != null)
+            Utils.execute(() -> sendChunk(message, chunk));
+    }
+
+    /**
+     * @return the file of the chunk asked for, or null if this peer doesn't store it
+     */
+    private File getStoredChunk(GetChunkMessage message) {
+        File chunk = new File(peer.getFileSystemPath() + File.separator + message.getFileId() + File.separator + message.getChunkNo());
+        return chunk.exists() ? chunk : null;
+    }
+
+    /**
+     * Sends the chunk straight to the initiator, from its file, or through MDR if it can't be reached
+     */
+    private void sendChunk(GetChunkMessage message, File chunk) {
+        ChunkMessage chunkMessage = new ChunkMessage(Peer.PROTOCOL_VERSION, peer.getPeerId(), message.getFileId(),
+                message.getChunkNo(), null);
+        if (dataPlane.sendFile(message.getSenderId(), chunkMessage, chunk.toPath()))
+            return;
+
+        try {
+            chunkMessage.setBody(Files.readAllBytes(chunk.toPath()));
+            sendMessage(chunkMessage);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     public void handleDeleteMessage(DeleteMessage message) {
@@ -58,6 +135,11 @@ public class MessageUtils {
             return;
 
         peer.addDeletedFile(message.getFileId());
+        // The peers that stored the chunks of the file no longer do
+        synchronized (peer.getChunkCount()) {
+            if (peer.getChunkCount().values().removeIf(metadata -> metadata.getFileId().equals(message.getFileId())))
+                peer.saveChunkCountToDisk();
+        }
         File file = new File(peer.getFileSystemPath() + File.separator + message.getFileId());
 
         if(!file.exists())
@@ -85,7 +167,8 @@ public class MessageUtils {
                 Utils.scheduleAction(() -> {
                     try {
                         if (lastPutChunkReceived == null || lastPutChunkReceived.getChunkUID() != message.getChunkUID()) {
-                            PutChunkMessage pcMessage = new PutChunkMessage(Peer.PROTOCOL_VERSION, peer.getPeerId(),
+                            // The stored body is sent as it is, with the version it was encoded with
+                            PutChunkMessage pcMessage = new PutChunkMessage(metadata.getVersion(), peer.getPeerId(),
                                     metadata.getFileId(), metadata.getChunkNo(), metadata.getRepDeg(), chunk);
 
                             peer.MessageUtils.sendMessage(pcMessage); // If it hasn't received a PutChunk message to the same chunk
@@ -117,102 +200,115 @@ public class MessageUtils {
             return;
         }
 
-        Utils.scheduleAction(() -> {
-            synchronized (peer.getChunkCount()) {
-                if (peer.getChunkCount().containsKey(message.getChunkUID()) &&
-                        peer.getChunkCount().get(message.getChunkUID()).getPeerIds().size() >= message.getReplicationDeg()) {
-                    Logger.getGlobal().info("Replication degree reached, not storing chunk...");
-                    return;
-                }
+        Utils.scheduleAction(() -> storeChunk(message, true), (long )(Math.random() * peer.DELAY_MS));
+    }
+
+    /**
+     * Stores the chunk if its replication degree wasn't reached yet
+     * @param mayDefer true if a fragment of a chunk this peer already has fragments of can wait for other peers
+     */
+    private void storeChunk(PutChunkMessage message, boolean mayDefer) {
+        // A peer that already stores the chunk confirms it again, in case its Stored message was lost
+        synchronized (peer.getChunkCount()) {
+            ChunkMetadata metadata = peer.getChunkCount().get(message.getChunkUID());
+            if (metadata != null && !metadata.getPeerIds().contains(peer.getPeerId()) &&
+                    metadata.getPeerIds().size() >= message.getReplicationDeg()) {
+                Logger.getGlobal().info("Replication degree reached, not storing chunk...");
+                return;
             }
+        }
+
+        // Fragments of the same chunk should be on different peers, so peers that have none go first
+        if (mayDefer && message.getVersion().equals(Peer.ERASURE_CODING_VERSION)) {
+            int fragments = countStoredFragments(message.getFileId(), message.getChunkNo());
+            if (fragments > 0) {
+                Utils.scheduleAction(() -> storeChunk(message, false), fragments * peer.DELAY_MS);
+                return;
+            }
+        }
 
-            try {
-                StoredMessage storedMessage = new StoredMessage(message.getVersion(), peer.getPeerId(),
-                        message.getFileId(), message.getChunkNo());
-                //send message STORED chunk
-                sendMessage(storedMessage);
+        try {
+            StoredMessage storedMessage = new StoredMessage(message.getVersion(), peer.getPeerId(),
+                    message.getFileId(), message.getChunkNo());
+            //send message STORED chunk, with the other chunks stored at the same time
+            peer.getControlBatcher().send(storedMessage);
             Path path = Paths.get(peer.getFileSystemPath() + "/" + message.getFileId());
-                if (!Files.exists(path))
-                    Files.createDirectory(path);
-                Files.write(Paths.get(path.toString() + "/" + message.getChunkNo()), Utils.trim(message.getBody()));
+            if (!Files.exists(path))
+                Files.createDirectory(path);
+            try (FileChannel channel = FileChannel.open(Paths.get(path.toString() + "/" + message.getChunkNo()),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer body = message.getBodyBuffer();
+                while (body.hasRemaining())
+                    channel.write(body);
+            }
 
 
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 
-            peer.logCapacityInfo();
-            peer.validateStorageCapacity();
-        }, (long )(Math.random() * peer.DELAY_MS));
+        peer.logCapacityInfo();
+        peer.validateStorageCapacity();
     }
 
     /**
-     * Sends message according to its type
+     * @return the number of other fragments of the same chunk stored by this peer
+     */
+    private int countStoredFragments(String fileId, int fragmentNo) {
+        int stripeNo = ChunkRef.getStripeNo(fragmentNo);
+        int count = 0;
+        for (int i = 0; i < BackupOptions.MAX_FRAGMENTS; i++) {
+            int chunkNo = ChunkRef.getFragmentNo(stripeNo, i);
+            if (chunkNo != fragmentNo && Files.exists(Paths.get(peer.getFileSystemPath(), fileId, String.valueOf(chunkNo))))
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Sends message according to its type. The message is encoded once, into a pooled buffer.
+     * PutChunk and Chunk messages wait for their channel's token bucket.
      * @param message
      */
     public void sendMessage(Message message) throws IOException {
         Logger.getGlobal().info("Send message " + message.getMessageType());
-        DatagramPacket packet;
-
-        switch (message.getMessageType()) {
-            case PUTCHUNK:
-                packet = new DatagramPacket(message.getBytes(), message.getBytes().length, peer.getMdbAddr(), peer.getMdbPort());
-                peer.getMdbSocket().send(packet);
-                break;
-            case STORED:
-                packet = new DatagramPacket(message.getBytes(), message.getBytes().length, peer.getMcAddr(), peer.getMcPort());
-                peer.getMcSocket().send(packet);
-                break;
-            case DELETE:
-                for(int i = 0; i < NUMBER_TRIES; i++) {
-                    packet = new DatagramPacket(message.getBytes(), message.getBytes().length, peer.getMcAddr(), peer.getMcPort());
-                    peer.getMcSocket().send(packet);
-                }
-                break;
-            case CHUNK:
-                packet = new DatagramPacket(message.getBytes(), message.getBytes().length, peer.getMdrAddr(), peer.getMdrPort());
-                peer.getMdrSocket().send(packet);
-                break;
-            case GETCHUNK:
-                packet = new DatagramPacket(message.getBytes(), message.getBytes().length, peer.getMcAddr(), peer.getMcPort());
-                peer.getMcSocket().send(packet);
-                break;
-            case REMOVED:
-                packet = new DatagramPacket(message.getBytes(), message.getBytes().length, peer.getMcAddr(), peer.getMcPort());
-                peer.getMcSocket().send(packet);
-                break;
-            case GET_DELETED:
-                packet = new DatagramPacket(message.getBytes(), message.getBytes().length, peer.getMcAddr(), peer.getMcPort());
-                peer.getMcSocket().send(packet);
+        ByteBuffer buffer = sendBuffers.acquire(message.getEncodedLength());
+        try {
+            message.encode(buffer);
+            buffer.flip();
+
+            switch (message.getMessageType()) {
+                case PUTCHUNK:
+                case PARITY:
+                    dataBucket.acquire(buffer.remaining());
+                    peer.getSendChannel().send(buffer, peer.getMdbGroup());
+                    break;
+                case CHUNK:
+                    recoveryBucket.acquire(buffer.remaining());
+                    peer.getSendChannel().send(buffer, peer.getMdrGroup());
+                    break;
+                case DELETE:
+                    for (int i = 0; i < NUMBER_TRIES; i++)
+                        peer.getSendChannel().send(buffer.rewind(), peer.getMcGroup());
+                    break;
+                default:
+                    // STORED, GETCHUNK, REMOVED and GET_DELETED go through the control channel
+                    peer.getSendChannel().send(buffer, peer.getMcGroup());
+            }
+        } finally {
+            sendBuffers.release(buffer);
         }
+    }
 
+    public TokenBucket getDataBucket() {
+        return dataBucket;
     }
 
-    private boolean sendThroughTCP(Message inMessage, ChunkMessage outMessage, boolean isRetry) {
-        try {
-            Socket socket = new Socket(InetAddress.getByName("localhost"), inMessage.getSenderId() * 10);
-            if (socket.isConnected()) { // If can send data through TCP socket
-                ObjectOutputStream toServer = new ObjectOutputStream(socket.getOutputStream());
-                toServer.writeObject(outMessage);
-                toServer.flush();
-                toServer.close();
-                socket.close();
-                Logger.getGlobal().info("Chunk " + outMessage.getChunkNo() + "sent through TCP");
-                return true;
-            }
-        } catch (IOException e) {
-            Logger.getGlobal().warning("Couldn't send data through TCP: " + e.getLocalizedMessage());
-        }
+    public TokenBucket getRecoveryBucket() {
+        return recoveryBucket;
+    }
 
-        if (!isRetry) {
-            try {
-                Thread.sleep(peer.DELAY_MS);
-                return sendThroughTCP(inMessage, outMessage, true);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-        Logger.getGlobal().warning("Couldn't find a TCP connection, falling back to multicast...");
-        return false;
+    public DataPlane getDataPlane() {
+        return dataPlane;
     }
 }
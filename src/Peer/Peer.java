@@ -3,9 +3,12 @@ package Peer;
 import Common.messages.Version;
 import Common.remote.IControl;
 import Peer.protocols.Controller;
+import Peer.protocols.RestoreSink;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.file.*;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
@@ -15,14 +18,22 @@ import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class Peer {
     private static final int NUMBER_TRIES = 3;
     private final int CHUNKSIZE = 64000;
+    private static final int MAX_DATAGRAM_SIZE = 65536;
+    public static final int TCP_PORT_OFFSET = 6000;    // each peer receives chunks through TCP on this port plus its id
     public final long DELAY_MS = 400;
+    private static final long INITIAL_RESEND_TIMEOUT = 1000;    // used until a Stored round-trip is measured
+    private static final long MIN_RESEND_TIMEOUT = 50;
+    private static final long MAX_RESEND_TIMEOUT = 32000;
     private final String DEFAULT_STORAGE_CAPACITY = "1m"; //150 kilobytes
+    public static final String BANDWIDTH_PROPERTY = "peer.bandwidth";
+    private final String DEFAULT_BANDWIDTH = "10m";   // bytes per second sent through each data channel
 
     private final String FILES_DIRECTORY = System.getProperty("user.dir") + File.separator +"filesystem" + File.separator
             + "peers" + File.separator +"peer";
@@ -31,36 +42,43 @@ public class Peer {
 
     private final long STORAGE_CAPACITY;
     public static final Version PROTOCOL_VERSION = new Version(1, 0);
+    public static final Version COMPRESSION_VERSION = new Version(1, 1);    // chunk bodies start with a codec
+    public static final Version ERASURE_CODING_VERSION = new Version(1, 2); // chunks are Reed-Solomon fragments
+    public static final Version BATCH_VERSION = new Version(1, 3);          // control messages with many records
 
     private final int peerId;
     public boolean isInitiatorPeer = false;
 
     // Control channel
-    private MulticastSocket mcSocket;
+    private DatagramChannel mcChannel;
     private InetAddress mcAddr;
     private int mcPort;
+    private InetSocketAddress mcGroup;
 
     // Data channel
-    private MulticastSocket mdbSocket;
+    private DatagramChannel mdbChannel;
     private InetAddress mdbAddr;
     private int mdbPort;
+    private InetSocketAddress mdbGroup;
 
     // Data recovery channel
-    private MulticastSocket mdrSocket;
+    private DatagramChannel mdrChannel;
     private InetAddress mdrAddr;
     private int mdrPort;
+    private InetSocketAddress mdrGroup;
 
-    // TCP Socket
-    private final ServerSocket tcpSocket;
+    // Channel every message is sent through
+    private final DatagramChannel sendChannel;
+    private NetworkInterface multicastInterface;
 
-    //store received ACKs
-    private final HashMap<String, HashSet<Integer>> acks = new HashMap<>();
+    // TCP server channel, receives the chunks sent to this peer when restoring
+    private final ServerSocketChannel tcpChannel;
 
-    //store the restore chunks
-    private final HashMap<String, HashMap<Integer, byte[]>> restore = new HashMap<>();
+    // Reads every channel
+    private final ChannelReactor reactor;
 
-    //store the flags of chunks sent
-    private final HashMap<String, HashSet<Integer>> chunksSent = new HashMap<>();
+    // Files being restored, by the fileIds of their chunks
+    private final ConcurrentHashMap<String, Set<RestoreSink>> restoreSinks = new ConcurrentHashMap<>();
 
 
     //store the chunks to be ignored when received in a PutChunk message
@@ -75,9 +93,22 @@ public class Peer {
     // Contains handlers to all implemented protocols
     public final Controller ProtocolController;
 
+    // Coalesces the control messages sent in a short time window
+    private final ControlBatcher controlBatcher;
+
     // Stores how many peers saved the chunk
     private ConcurrentHashMap<String, ChunkMetadata> chunkCount = new ConcurrentHashMap<>();
 
+    // Stores the chunks sent by this peer that are waiting for Stored confirmations
+    private final PendingChunks pendingChunks;
+
+    // Stores the manifests of the files backed up by this peer and the index of their chunks
+    private final ManifestStore manifests;
+
+    // Saves of the chunk count to disk are delayed and done together
+    private final long CHUNK_COUNT_SAVE_DELAY = 1000;
+    private final AtomicBoolean chunkCountSaveScheduled = new AtomicBoolean();
+
     // Stores the files that were requested to delete
     private ConcurrentLinkedQueue<String> deletedFiles = new ConcurrentLinkedQueue<>();
 
@@ -112,6 +143,7 @@ public class Peer {
         Logger.getGlobal().info("Creating Peer...");
         this.peerId = Integer.parseInt(args[0]);
         IgnorePutChunkUID = new ArrayList<>();
+        manifests = new ManifestStore(getManifestsFilePath());
 
         // Verify if this peer base directory exists. If not creates it.
         initFilesystem();
@@ -122,7 +154,9 @@ public class Peer {
         this.CommunicationChannels = new CommunicationChannels(this, CHUNKSIZE);
 
         // Creates message handlers
-        this.MessageUtils = new MessageUtils(this, NUMBER_TRIES);
+        this.MessageUtils = new MessageUtils(this, NUMBER_TRIES,
+                Utils.parseSizeArg(System.getProperty(BANDWIDTH_PROPERTY, DEFAULT_BANDWIDTH)), CHUNKSIZE);
+        this.controlBatcher = new ControlBatcher(this);
 
         // Creates new protocol controller
         this.ProtocolController = new Controller(this, CLIENT_DIRECTORY, CHUNKSIZE);
@@ -131,15 +165,27 @@ public class Peer {
         Logger.getGlobal().info("Searching for peer metadata files");
         loadChunkCountFromDisk();
         loadDeletedFilesFromDisk();
+        manifests.load();
 
         // Initiates communication channels
+        multicastInterface = findMulticastInterface();
         initControlChannel(args[1], args[2]);
         initDataChannel(args[3], args[4]);
         initRecoveryChannel(args[5], args[6]);
+        pendingChunks = new PendingChunks(new RttEstimator(mdbAddr + ":" + mdbPort,
+                INITIAL_RESEND_TIMEOUT, MIN_RESEND_TIMEOUT, MAX_RESEND_TIMEOUT));
         initRMIChannel(1099);
 
-        // Initializes server TCP socket
-        tcpSocket = new ServerSocket(peerId + 6000, 0, InetAddress.getByName("localhost"));
+        sendChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+        sendChannel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        if (multicastInterface != null)
+            sendChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, multicastInterface);
+
+        // Initializes server TCP channel
+        tcpChannel = ServerSocketChannel.open();
+        tcpChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), TCP_PORT_OFFSET + peerId));
+
+        reactor = new ChannelReactor(MAX_DATAGRAM_SIZE);
 
         // Checks if any deleted request was made while peer was offline
         ProtocolController.validateDeleted();
@@ -157,8 +203,8 @@ public class Peer {
             mcAddr = InetAddress.getByName(address);
             mcPort = Integer.parseInt(port);
 
-            mcSocket = new MulticastSocket(mcPort);
-            mcSocket.joinGroup(mcAddr);
+            mcGroup = new InetSocketAddress(mcAddr, mcPort);
+            mcChannel = openMulticastChannel(mcAddr, mcPort);
 
         } catch (UnknownHostException e) {
             Logger.getGlobal().severe("Socket error: " + e.getMessage());
@@ -178,8 +224,8 @@ public class Peer {
             mdbAddr = InetAddress.getByName(address);
             mdbPort = Integer.parseInt(port);
             Logger.getGlobal().info("Initializing data channel at " + mdbAddr + ":" + mdbPort + "...");
-            mdbSocket = new MulticastSocket(mdbPort);
-            mdbSocket.joinGroup(mdbAddr);
+            mdbGroup = new InetSocketAddress(mdbAddr, mdbPort);
+            mdbChannel = openMulticastChannel(mdbAddr, mdbPort);
 
         } catch (UnknownHostException e) {
             Logger.getGlobal().severe("Socket error: " + e.getMessage());
@@ -199,8 +245,8 @@ public class Peer {
             mdrAddr = InetAddress.getByName(address);
             mdrPort = Integer.parseInt(port);
 
-            mdrSocket = new MulticastSocket(mdrPort);
-            mdrSocket.joinGroup(mdrAddr);
+            mdrGroup = new InetSocketAddress(mdrAddr, mdrPort);
+            mdrChannel = openMulticastChannel(mdrAddr, mdrPort);
 
         } catch (UnknownHostException e) {
             Logger.getGlobal().severe("Socket error: " + e.getMessage());
@@ -209,6 +255,41 @@ public class Peer {
         }
     }
 
+    /**
+     * Opens a channel that receives the datagrams sent to the multicast group
+     */
+    private DatagramChannel openMulticastChannel(InetAddress group, int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.bind(new InetSocketAddress(port));
+        channel.join(group, multicastInterface);
+        return channel;
+    }
+
+    /**
+     * Finds the interface used to join the multicast groups: the one of the host address, if it supports
+     * multicast, or else the first interface up that supports it, preferring others to the loopback
+     */
+    private static NetworkInterface findMulticastInterface() throws SocketException {
+        try {
+            NetworkInterface local = NetworkInterface.getByInetAddress(InetAddress.getLocalHost());
+            if (local != null && local.isUp() && local.supportsMulticast())
+                return local;
+        } catch (UnknownHostException e) {
+            Logger.getGlobal().warning("Couldn't get host address: " + e.getMessage());
+        }
+
+        NetworkInterface loopback = null;
+        for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!networkInterface.isUp() || !networkInterface.supportsMulticast())
+                continue;
+            if (!networkInterface.isLoopback())
+                return networkInterface;
+            loopback = networkInterface;
+        }
+        return loopback;
+    }
+
     /**
      * Init RMI channel for communication with client
      * @param port
@@ -245,48 +326,70 @@ public class Peer {
     }
 
     /**
-    * Creates threads that wait for messages from channels
+    * Starts the threads that handle the messages of each channel, and the reactor that reads them
     */
-    public void start() {
+    public void start() throws IOException {
         Logger.getGlobal().info("Starting control channel");
-        CommunicationChannels.getControlChannelThread().start();
+        reactor.register(mcChannel, CommunicationChannels.getControlChannel());
+        CommunicationChannels.getControlChannel().start();
 
         Logger.getGlobal().info("Starting data channel");
-        CommunicationChannels.getDataChannelThread().start();
+        reactor.register(mdbChannel, CommunicationChannels.getDataChannel());
+        CommunicationChannels.getDataChannel().start();
 
-        Logger.getGlobal().info("Starting data recovery channel");;
-        CommunicationChannels.getRecoveryChannelThread().start();
+        Logger.getGlobal().info("Starting data recovery channel");
+        reactor.register(mdrChannel, CommunicationChannels.getRecoveryChannel());
+        CommunicationChannels.getRecoveryChannel().start();
+
+        // Chunks sent through TCP are handled with the ones received through MDR
+        reactor.register(tcpChannel, CommunicationChannels.getRecoveryChannel());
+        reactor.start();
     }
 
     /**
      * Getters for Peer variables
      */
-    public HashMap<String, HashSet<Integer>> getAcks() {
-        return acks;
+    public DatagramChannel getSendChannel() {
+        return sendChannel;
     }
 
-    public MulticastSocket getMcSocket() {
-        return mcSocket;
+    /**
+     * Starts giving the chunks received to the sink, until it is removed
+     */
+    public void addRestoreSink(RestoreSink sink) {
+        for (String fileId : sink.getFileIds())
+            restoreSinks.computeIfAbsent(fileId, id -> ConcurrentHashMap.newKeySet()).add(sink);
     }
 
-    public MulticastSocket getMdbSocket() {
-        return mdbSocket;
+    public void removeRestoreSink(RestoreSink sink) {
+        for (String fileId : sink.getFileIds())
+            restoreSinks.computeIfPresent(fileId, (id, sinks) -> {
+                sinks.remove(sink);
+                return sinks.isEmpty() ? null : sinks;
+            });
     }
 
-    public MulticastSocket getMdrSocket() {
-        return mdrSocket;
+    /**
+     * @return the sinks of the files being restored that have chunks of the given fileId, or null if there are none
+     */
+    public Set<RestoreSink> getRestoreSinks(String fileId) {
+        return restoreSinks.get(fileId);
     }
 
-    public HashMap<String, HashSet<Integer>> getChunksSent() {
-        return chunksSent;
+    public ConcurrentHashMap<String, ChunkMetadata> getChunkCount() {
+        return chunkCount;
     }
 
-    public HashMap<String, HashMap<Integer, byte[]>> getRestore() {
-        return restore;
+    public PendingChunks getPendingChunks() {
+        return pendingChunks;
     }
 
-    public ConcurrentHashMap<String, ChunkMetadata> getChunkCount() {
-        return chunkCount;
+    public ControlBatcher getControlBatcher() {
+        return controlBatcher;
+    }
+
+    public ManifestStore getManifests() {
+        return manifests;
     }
 
     public InetAddress getMcAddr() {
@@ -297,6 +400,10 @@ public class Peer {
         return mcPort;
     }
 
+    public InetSocketAddress getMcGroup() {
+        return mcGroup;
+    }
+
     public InetAddress getMdbAddr() {
         return mdbAddr;
     }
@@ -305,6 +412,10 @@ public class Peer {
         return mdbPort;
     }
 
+    public InetSocketAddress getMdbGroup() {
+        return mdbGroup;
+    }
+
     public InetAddress getMdrAddr() {
         return mdrAddr;
     }
@@ -313,6 +424,10 @@ public class Peer {
         return mdrPort;
     }
 
+    public InetSocketAddress getMdrGroup() {
+        return mdrGroup;
+    }
+
     public long getUsedCapacity() {
         return Utils.directorySize(new File(getFileSystemPath()));
     }
@@ -325,10 +440,6 @@ public class Peer {
         return IgnorePutChunkUID;
     }
 
-    public ServerSocket getTcpSocket() {
-        return tcpSocket;
-    }
-
     public ConcurrentLinkedQueue<String> getDeletedFiles() {
         return deletedFiles;
     }
@@ -395,23 +506,33 @@ public class Peer {
     public void ignorePutChunkUID(String chunkUID) {
         Logger.getGlobal().info("Added chunk to PutChunk ignore: " + chunkUID);
         getIgnorePutChunkUID().add(chunkUID);
-        new Timer().schedule(
-                new TimerTask() {
-                    @Override
-                    public void run() {
-                        boolean result = getIgnorePutChunkUID().remove(chunkUID);
-                        Logger.getGlobal().info("Removed chunk from PutChunk ignore list? " + result);
-
-                    }
-                }, DELAY_MS + 100);
+        Utils.scheduleAction(() -> {
+            boolean result = getIgnorePutChunkUID().remove(chunkUID);
+            Logger.getGlobal().info("Removed chunk from PutChunk ignore list? " + result);
+        }, DELAY_MS + 100);
     }
 
+    /**
+     * Schedules the chunk count to be saved to disk. Changes made until then are saved together, so handling
+     * messages doesn't wait for the whole map to be written on every change.
+     */
     public void saveChunkCountToDisk() {
+        if (chunkCountSaveScheduled.compareAndSet(false, true))
+            Utils.scheduleAction(() -> {
+                chunkCountSaveScheduled.set(false);
+                writeChunkCountToDisk();
+            }, CHUNK_COUNT_SAVE_DELAY);
+    }
+
+    private void writeChunkCountToDisk() {
         Logger.getGlobal().info("Saving chunk count to disk");
         try {
             FileOutputStream fos = new FileOutputStream(getChunkCountFilePath(), false);
             ObjectOutputStream oos = new ObjectOutputStream(fos);
-            oos.writeObject(chunkCount);
+            // The peers of each chunk are only changed while holding the lock
+            synchronized (chunkCount) {
+                oos.writeObject(chunkCount);
+            }
             oos.flush();
             oos.close();
             fos.close();
@@ -482,6 +603,10 @@ public class Peer {
         return Paths.get(getFileSystemPath(), ".metadata-deletedFiles").toString();
     }
 
+    private String getManifestsFilePath() {
+        return Paths.get(getFileSystemPath(), ".metadata-manifests").toString();
+    }
+
     public String toString() {
         String text = "\n" + "File pathname: " + FILES_DIRECTORY + this.peerId + File.separator;
      return text;
@@ -0,0 +1,112 @@
+package Peer;
+
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the chunks this peer sent in a PutChunk message and is still waiting confirmations for.
+ * The control channel reports every Stored message received, and the future of the chunk is completed
+ * as soon as the replication degree is reached.
+ * The time between sending a chunk and its first Stored message feeds the round-trip time estimator. Later
+ * confirmations are left out, since each peer waits a random delay before storing the chunk and the last one
+ * to answer would mostly measure that delay.
+ */
+public class PendingChunks {
+    private final ConcurrentHashMap<String, PendingChunk> pending = new ConcurrentHashMap<>();
+    private final RttEstimator rttEstimator;
+
+    public PendingChunks(RttEstimator rttEstimator) {
+        this.rttEstimator = rttEstimator;
+    }
+
+    /**
+     * Starts waiting confirmations for the given chunk.
+     * If the chunk is already being waited for (the same file backed up twice at once), the confirmations are
+     * shared, but each caller gets its own future, so one giving up on the chunk doesn't fail it for the others.
+     * @param chunkUID the chunk unique identifier
+     * @param repDeg the number of Stored messages from different peers needed
+     * @return future completed when the replication degree is reached
+     */
+    public CompletableFuture<Void> register(String chunkUID, int repDeg) {
+        PendingChunk chunk = pending.compute(chunkUID, (key, current) -> {
+            PendingChunk registered = current != null ? current : new PendingChunk(repDeg);
+            registered.waiting++;
+            return registered;
+        });
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        chunk.future.thenRun(() -> future.complete(null));
+        // The chunk is forgotten once nobody waits for it
+        future.whenComplete((v, e) -> pending.computeIfPresent(chunkUID,
+                (key, current) -> current == chunk && --current.waiting == 0 ? null : current));
+        return future;
+    }
+
+    /**
+     * Marks the chunk as sent for the first time, after it waited for the token bucket
+     * @param chunkUID the chunk unique identifier
+     */
+    public void sent(String chunkUID) {
+        PendingChunk chunk = pending.get(chunkUID);
+        if (chunk != null && chunk.sentAt == 0)
+            chunk.sentAt = System.nanoTime();
+    }
+
+    /**
+     * Marks the chunk as sent again, so that its confirmations are no longer used as round-trip time samples
+     * @param chunkUID the chunk unique identifier
+     */
+    public void retransmitted(String chunkUID) {
+        PendingChunk chunk = pending.get(chunkUID);
+        if (chunk != null)
+            chunk.retransmitted = true;
+    }
+
+    /**
+     * Registers a Stored message for the given chunk
+     * @param chunkUID the chunk unique identifier
+     * @param peerId the id of the peer that stored the chunk
+     */
+    public void stored(String chunkUID, int peerId) {
+        PendingChunk chunk = pending.get(chunkUID);
+        if (chunk == null)
+            return;
+
+        boolean first;
+        boolean completed;
+        synchronized (chunk) {
+            first = chunk.peerIds.isEmpty();
+            chunk.peerIds.add(peerId);
+            completed = chunk.peerIds.size() >= chunk.repDeg;
+        }
+        // The Stored message waited for the batch window of the peer that sent it
+        if (first && !chunk.retransmitted && chunk.sentAt != 0) {
+            double rtt = (System.nanoTime() - chunk.sentAt) / 1e6 - ControlBatcher.BATCH_WINDOW_MS;
+            rttEstimator.addSample(Math.max(0, rtt));
+        }
+        if (completed)
+            chunk.future.complete(null);
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    public RttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
+    private static class PendingChunk {
+        private final int repDeg;
+        private final HashSet<Integer> peerIds = new HashSet<>();
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private int waiting = 0;            // futures given for the chunk that weren't completed yet
+        private volatile long sentAt = 0;   // 0 until the chunk is sent
+        private volatile boolean retransmitted = false;
+
+        private PendingChunk(int repDeg) {
+            this.repDeg = repDeg;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package Peer;
+
+/**
+ * Systematic Reed-Solomon erasure code over GF(2^8).
+ * A chunk is split in k data fragments and m parity fragments are computed from them, so the chunk can be
+ * rebuilt from any k of the k + m fragments. The encoding matrix is the identity on top of a Cauchy matrix,
+ * which makes every k x k sub-matrix invertible.
+ */
+public class ReedSolomon {
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+
+    static {
+        // Tables for the field generated by x^8 + x^4 + x^3 + x^2 + 1
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if ((x & 0x100) != 0)
+                x ^= 0x11d;
+        }
+        for (int i = 255; i < EXP.length; i++)
+            EXP[i] = EXP[i - 255];
+    }
+
+    private final int dataFragments;
+    private final int parityFragments;
+    private final int[][] parityMatrix;
+
+    public ReedSolomon(int dataFragments, int parityFragments) {
+        if (dataFragments < 1 || parityFragments < 0 || dataFragments + parityFragments > 256)
+            throw new IllegalArgumentException("Invalid number of fragments: " + dataFragments + "+" + parityFragments);
+
+        this.dataFragments = dataFragments;
+        this.parityFragments = parityFragments;
+        this.parityMatrix = new int[parityFragments][dataFragments];
+        for (int i = 0; i < parityFragments; i++)
+            for (int j = 0; j < dataFragments; j++)
+                parityMatrix[i][j] = inverse((dataFragments + i) ^ j);
+    }
+
+    /**
+     * Splits the data in fragments. The length of the data is stored with it, so decode returns it exactly.
+     * @param data the data to encode
+     * @return k data fragments followed by m parity fragments, all with the same size
+     */
+    public byte[][] encode(byte[] data) {
+        int total = data.length + 4;
+        int size = (total + dataFragments - 1) / dataFragments;
+        byte[][] fragments = new byte[dataFragments + parityFragments][size];
+
+        byte[] length = { (byte) (data.length >>> 24), (byte) (data.length >>> 16), (byte) (data.length >>> 8), (byte) data.length };
+        for (int i = 0; i < total; i++)
+            fragments[i / size][i % size] = i < 4 ? length[i] : data[i - 4];
+
+        for (int i = 0; i < parityFragments; i++) {
+            byte[] parity = fragments[dataFragments + i];
+            for (int j = 0; j < dataFragments; j++)
+                multiplyAdd(parityMatrix[i][j], fragments[j], parity);
+        }
+        return fragments;
+    }
+
+    /**
+     * Rebuilds the data from any k fragments
+     * @param fragments all k + m fragments, with null in the ones missing
+     * @return the original data, or null if less than k fragments are available or they don't match
+     */
+    public byte[] decode(byte[][] fragments) {
+        int[] rows = new int[dataFragments];
+        int found = 0;
+        for (int i = 0; i < fragments.length && found < dataFragments; i++)
+            if (fragments[i] != null)
+                rows[found++] = i;
+        if (found < dataFragments)
+            return null;
+
+        int size = fragments[rows[0]].length;
+        for (int r = 1; r < dataFragments; r++)
+            if (fragments[rows[r]].length != size)
+                return null;
+        byte[][] data = new byte[dataFragments][];
+        int[][] matrix = new int[dataFragments][];
+        boolean systematic = true;
+        for (int r = 0; r < dataFragments; r++) {
+            matrix[r] = getRow(rows[r]);
+            systematic &= rows[r] == r;
+        }
+
+        if (systematic) {
+            for (int j = 0; j < dataFragments; j++)
+                data[j] = fragments[j];
+        } else {
+            int[][] inverse = invert(matrix);
+            for (int j = 0; j < dataFragments; j++) {
+                data[j] = new byte[size];
+                for (int r = 0; r < dataFragments; r++)
+                    multiplyAdd(inverse[j][r], fragments[rows[r]], data[j]);
+            }
+        }
+
+        byte[] header = new byte[4];
+        for (int i = 0; i < 4; i++)
+            header[i] = data[i / size][i % size];
+        int length = ((header[0] & 0xff) << 24) | ((header[1] & 0xff) << 16) | ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+        if (length < 0 || length + 4 > size * dataFragments)
+            return null;
+
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++)
+            result[i] = data[(i + 4) / size][(i + 4) % size];
+        return result;
+    }
+
+    public int getDataFragments() {
+        return dataFragments;
+    }
+
+    public int getParityFragments() {
+        return parityFragments;
+    }
+
+    /**
+     * @return the row of the encoding matrix that produces the given fragment
+     */
+    private int[] getRow(int fragment) {
+        if (fragment >= dataFragments)
+            return parityMatrix[fragment - dataFragments].clone();
+        int[] row = new int[dataFragments];
+        row[fragment] = 1;
+        return row;
+    }
+
+    /**
+     * Inverts a square matrix with Gauss-Jordan elimination
+     */
+    private static int[][] invert(int[][] matrix) {
+        int n = matrix.length;
+        int[][] inverse = new int[n][n];
+        for (int i = 0; i < n; i++)
+            inverse[i][i] = 1;
+
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (matrix[pivot][col] == 0)
+                pivot++;    // always found, every sub-matrix of the encoding matrix is invertible
+            int[] tmp = matrix[col]; matrix[col] = matrix[pivot]; matrix[pivot] = tmp;
+            tmp = inverse[col]; inverse[col] = inverse[pivot]; inverse[pivot] = tmp;
+
+            int scale = inverse(matrix[col][col]);
+            for (int j = 0; j < n; j++) {
+                matrix[col][j] = multiply(matrix[col][j], scale);
+                inverse[col][j] = multiply(inverse[col][j], scale);
+            }
+
+            for (int row = 0; row < n; row++) {
+                int factor = matrix[row][col];
+                if (row == col || factor == 0)
+                    continue;
+                for (int j = 0; j < n; j++) {
+                    matrix[row][j] ^= multiply(factor, matrix[col][j]);
+                    inverse[row][j] ^= multiply(factor, inverse[col][j]);
+                }
+            }
+        }
+        return inverse;
+    }
+
+    /**
+     * Adds coefficient * source to target
+     */
+    private static void multiplyAdd(int coefficient, byte[] source, byte[] target) {
+        if (coefficient == 0)
+            return;
+        int logCoefficient = LOG[coefficient];
+        for (int i = 0; i < source.length; i++) {
+            int value = source[i] & 0xff;
+            if (value != 0)
+                target[i] ^= EXP[LOG[value] + logCoefficient];
+        }
+    }
+
+    private static int multiply(int a, int b) {
+        if (a == 0 || b == 0)
+            return 0;
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+}
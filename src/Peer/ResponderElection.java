@@ -0,0 +1,84 @@
+package Peer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Orders the peers storing a chunk to answer a GetChunk message sent through MC one at a time. The holders of
+ * the chunk, known from the Stored messages every peer sees on MC, are ranked by rendezvous hashing of the
+ * chunkUID with each peerId, which every holder computes the same way. The holder ranked first answers right
+ * away, and each of the others waits a step more than the one above it, and doesn't answer if it sees the chunk
+ * sent on MDR meanwhile, so it only steps in when the holders above it didn't.
+ */
+public class ResponderElection {
+    private final int MAX_RECENT_CHUNKS = 1024;
+
+    private final int peerId;
+    private final long stepMs;
+
+    // Last time each chunk was seen on MDR, the least recently seen is dropped first
+    private final LinkedHashMap<String, Long> sent = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_RECENT_CHUNKS;
+        }
+    };
+
+    /**
+     * @param stepMs time each holder waits after the one ranked above it
+     */
+    public ResponderElection(int peerId, long stepMs) {
+        this.peerId = peerId;
+        this.stepMs = stepMs;
+    }
+
+    /**
+     * @param holders the peers that store the chunk, this peer is added if it isn't there
+     * @return time this peer waits before answering a request for the chunk, 0 if it is ranked first
+     */
+    public long getDelay(String chunkUID, Set<Integer> holders) {
+        holders.add(peerId);
+        return rank(chunkUID, holders).indexOf(peerId) * stepMs;
+    }
+
+    public synchronized void chunkSent(String chunkUID) {
+        sent.put(chunkUID, System.nanoTime());
+    }
+
+    /**
+     * @param time System.nanoTime() from when the chunk counts as sent
+     * @return true if the chunk was seen on MDR after the time
+     */
+    public synchronized boolean sentSince(String chunkUID, long time) {
+        Long last = sent.get(chunkUID);
+        return last != null && last - time >= 0;
+    }
+
+    /**
+     * @return the holders ordered by their score for the chunk, highest first
+     */
+    public static List<Integer> rank(String chunkUID, Set<Integer> holders) {
+        List<Integer> ranking = new ArrayList<>(holders);
+        ranking.sort((a, b) -> {
+            int order = Long.compare(score(chunkUID, b), score(chunkUID, a));
+            return order != 0 ? order : Integer.compare(a, b);
+        });
+        return ranking;
+    }
+
+    /**
+     * Mixes the chunkUID with the peerId, so each chunk gets an unrelated order of the peers
+     */
+    private static long score(String chunkUID, int peerId) {
+        long h = ((long) chunkUID.hashCode() << 32) ^ peerId;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
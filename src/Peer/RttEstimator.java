@@ -0,0 +1,81 @@
+package Peer;
+
+/**
+ * Estimates the round-trip time between a PutChunk message and its Stored confirmations, in the same way
+ * TCP estimates its retransmission timeout (RFC 6298): a smoothed RTT and its variation are updated with
+ * each sample, and the timeout is the smoothed RTT plus four times the variation.
+ */
+public class RttEstimator {
+    private static final double ALPHA = 0.125;
+    private static final double BETA = 0.25;
+    private static final int K = 4;
+
+    private final String group;
+    private final long initialTimeout;
+    private final long minTimeout;
+    private final long maxTimeout;
+
+    private double srtt;
+    private double rttvar;
+    private long samples = 0;
+
+    /**
+     * @param group name of the group of peers the samples come from
+     * @param initialTimeout timeout used until the first sample is received, in milliseconds
+     * @param minTimeout lower bound of the timeout, in milliseconds
+     * @param maxTimeout upper bound of the timeout, in milliseconds
+     */
+    public RttEstimator(String group, long initialTimeout, long minTimeout, long maxTimeout) {
+        this.group = group;
+        this.initialTimeout = initialTimeout;
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+    }
+
+    /**
+     * Adds a new round-trip time measurement.
+     * Only chunks that weren't retransmitted should be sampled, otherwise it's unknown which send was answered.
+     * @param rttMs the measured round-trip time in milliseconds
+     */
+    public synchronized void addSample(double rttMs) {
+        if (samples == 0) {
+            srtt = rttMs;
+            rttvar = rttMs / 2;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rttMs);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rttMs;
+        }
+        samples++;
+    }
+
+    /**
+     * @return the timeout to wait before the first retransmission, in milliseconds
+     */
+    public synchronized long getTimeout() {
+        if (samples == 0)
+            return initialTimeout;
+        return clamp((long) Math.ceil(srtt + K * rttvar));
+    }
+
+    /**
+     * @param retry number of retransmissions already made
+     * @return the timeout doubled once per retransmission, in milliseconds
+     */
+    public long getBackoffTimeout(int retry) {
+        return clamp(getTimeout() << Math.min(retry, 30));
+    }
+
+    private long clamp(long timeout) {
+        return Math.max(minTimeout, Math.min(maxTimeout, timeout));
+    }
+
+    @Override
+    public synchronized String toString() {
+        String text = "RTT estimator (" + group + ")";
+        text += "\n     Samples: " + samples;
+        text += "\n     SRTT: " + String.format("%.1f", srtt) + "ms";
+        text += "\n     RTTVAR: " + String.format("%.1f", rttvar) + "ms";
+        text += "\n     Retransmission timeout: " + getTimeout() + "ms";
+        return text;
+    }
+}
@@ -0,0 +1,97 @@
+package Peer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Creates the executor that runs the per-chunk and per-file work of the protocols, so they don't start a
+ * platform thread for each task. The mode is chosen with the peer.executor system property:
+ * VIRTUAL runs each task on its own virtual thread, when the JVM has them, and SHARED runs every task
+ * on a pool with a fixed number of platform threads.
+ */
+public class TaskExecutor {
+    public static final String MODE_PROPERTY = "peer.executor";
+    private static final int SHARED_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    public enum Mode {
+        SHARED,
+        VIRTUAL
+    }
+
+    private final Mode mode;
+    private final ExecutorService executor;
+
+    private TaskExecutor(Mode mode, ExecutorService executor) {
+        this.mode = mode;
+        this.executor = executor;
+    }
+
+    /**
+     * Creates the executor in the mode set by the system property, VIRTUAL by default
+     */
+    public static TaskExecutor create() {
+        String property = System.getProperty(MODE_PROPERTY, Mode.VIRTUAL.name());
+        try {
+            return create(Mode.valueOf(property.trim().toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            Logger.getGlobal().warning("Unknown execution mode " + property + ", using " + Mode.SHARED);
+            return create(Mode.SHARED);
+        }
+    }
+
+    /**
+     * Creates the executor in the given mode. VIRTUAL falls back to SHARED if the JVM doesn't support
+     * virtual threads.
+     */
+    public static TaskExecutor create(Mode mode) {
+        if (mode == Mode.VIRTUAL) {
+            ExecutorService virtual = newVirtualThreadExecutor();
+            if (virtual != null)
+                return new TaskExecutor(Mode.VIRTUAL, virtual);
+            Logger.getGlobal().info("Virtual threads not available, using " + SHARED_THREADS + " shared threads");
+        }
+        return new TaskExecutor(Mode.SHARED, newSharedExecutor());
+    }
+
+    /**
+     * Found by reflection, so the peer still compiles and runs on JVMs without virtual threads
+     * @return the executor, or null if virtual threads aren't available
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newSharedExecutor() {
+        AtomicInteger threadNo = new AtomicInteger();
+        return new ThreadPoolExecutor(SHARED_THREADS, SHARED_THREADS, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "task-" + threadNo.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    @Override
+    public String toString() {
+        if (mode == Mode.SHARED)
+            return "Execution mode: " + mode + " (" + SHARED_THREADS + " threads)";
+        return "Execution mode: " + mode;
+    }
+}
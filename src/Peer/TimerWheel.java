@@ -0,0 +1,202 @@
+package Peer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timer wheel shared by the whole peer. Time is divided in ticks and each tick has a bucket of the
+ * timeouts that expire in it, so scheduling and cancelling a timeout take constant time no matter how many
+ * are pending. Timeouts further away than a full turn of the wheel wait in their bucket for the remaining turns.
+ * A single thread advances the wheel and hands expired tasks to the executor, which runs them.
+ */
+public class TimerWheel {
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Executor executor;
+    private final long startTime = System.nanoTime();
+
+    // Only the wheel thread touches the buckets, other threads queue the timeouts to add and to cancel
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private long tick = 0;
+
+    /**
+     * @param tickMs the duration of a tick, the precision of the timeouts
+     * @param wheelSize the number of buckets, rounded up to a power of two
+     * @param executor runs the tasks of expired timeouts
+     */
+    public TimerWheel(long tickMs, int wheelSize, Executor executor) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        this.executor = executor;
+
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new Bucket();
+        this.mask = size - 1;
+
+        Thread thread = new Thread(this::run, "timer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs the task after the delay
+     * @return the timeout, which can be cancelled while the task hasn't run
+     */
+    public Timeout schedule(Runnable task, long delayMs) {
+        long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs));
+        Timeout timeout = new Timeout(task, deadline);
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return the number of timeouts that haven't expired nor been cancelled
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    private void run() {
+        while (true) {
+            long deadline = waitForNextTick();
+            removeCancelled();
+            addTimeouts();
+            wheel[(int) (tick & mask)].expire(deadline);
+            tick++;
+        }
+    }
+
+    /**
+     * @return the time at which the current tick ends, relative to the start of the wheel
+     */
+    private long waitForNextTick() {
+        long deadline = tickNanos * (tick + 1);
+        while (true) {
+            long sleepMs = TimeUnit.NANOSECONDS.toMillis(deadline - (System.nanoTime() - startTime) + 999999);
+            if (sleepMs <= 0)
+                return deadline;
+            try {
+                Thread.sleep(sleepMs);
+            } catch (InterruptedException e) {
+                Logger.getGlobal().warning("Timer interrupted: " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    private void addTimeouts() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state.get() == Timeout.CANCELLED)
+                continue;
+            // A timeout already due goes in the current bucket
+            long ticks = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null)
+            if (timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+    }
+
+    /**
+     * Timeouts of a tick, in a doubly linked list so they are removed in constant time
+     */
+    private class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.prev != null) timeout.prev.next = timeout.next;
+            else head = timeout.next;
+            if (timeout.next != null) timeout.next.prev = timeout.prev;
+            else tail = timeout.prev;
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        /**
+         * Runs the timeouts due until the deadline, the others wait for one more turn of the wheel
+         */
+        private void expire(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+                    remove(timeout);
+                    if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+                        pending.decrementAndGet();
+                        executor.execute(timeout.task);
+                    }
+                } else timeout.remainingRounds--;
+                timeout = next;
+            }
+        }
+    }
+
+    /**
+     * A task waiting to be run by the wheel
+     */
+    public class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        // Used only by the wheel thread
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Keeps the task from running
+         * @return false if the task already ran or was cancelled before
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED))
+                return false;
+            pending.decrementAndGet();
+            cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+}
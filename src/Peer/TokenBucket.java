@@ -0,0 +1,131 @@
+package Peer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Limits the rate at which bytes are sent through a channel. Tokens are added to the bucket at the current
+ * rate, up to a burst of BURST_MS of sending, and each datagram takes as many tokens as its size, waiting
+ * for them when the bucket is empty.
+ * The rate adapts to the losses seen by the senders, in the same way as TCP congestion control (AIMD): it
+ * grows by a fixed amount for each chunk confirmed at the first try, up to the configured budget, and is
+ * halved, at most once per round-trip, when a chunk has to be retransmitted.
+ */
+public class TokenBucket {
+    private static final long BURST_MS = 50;
+    private static final int MIN_BURST = 2 * 65536;     // at least two full datagrams
+    private static final double DECREASE_FACTOR = 0.5;
+
+    private final String name;
+    private final long maxRate;
+    private final long minRate;
+    private final long increase;
+
+    private double rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private long lastDecrease = 0;
+
+    // Bytes sent since the start of the measurement window, to know the rate actually used
+    private long windowStart = System.nanoTime();
+    private long windowBytes = 0;
+    private double sentRate = 0;
+
+    private long retransmissions = 0;
+
+    /**
+     * @param maxRate the bandwidth budget, in bytes per second
+     * @param minRate the rate is never decreased below this one, in bytes per second
+     * @param increase added to the rate for each chunk confirmed at the first try, in bytes per second
+     */
+    public TokenBucket(String name, long maxRate, long minRate, long increase) {
+        this.name = name;
+        this.maxRate = maxRate;
+        this.minRate = Math.min(minRate, maxRate);
+        this.increase = increase;
+        this.rate = maxRate;
+        this.tokens = getBurst();
+    }
+
+    /**
+     * Takes the tokens needed to send the bytes, waiting for the bucket to have them
+     */
+    public void acquire(int bytes) {
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            tokens -= bytes;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+            measure(bytes);
+        }
+        if (waitNanos <= 0)
+            return;
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Logger.getGlobal().warning(name + " rate limiter interrupted: " + e.getLocalizedMessage());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A chunk sent through the channel was confirmed at the first try
+     */
+    public synchronized void confirmed() {
+        rate = Math.min(maxRate, rate + increase);
+    }
+
+    /**
+     * A chunk sent through the channel had to be retransmitted. The rate is halved from the one actually
+     * being used, unless it was already decreased in the last round-trip.
+     * @param rttMs the round-trip time of the channel, in milliseconds
+     */
+    public synchronized void retransmitted(long rttMs) {
+        retransmissions++;
+        long now = System.nanoTime();
+        if (now - lastDecrease < TimeUnit.MILLISECONDS.toNanos(rttMs))
+            return;
+
+        lastDecrease = now;
+        double current = sentRate > 0 ? Math.min(rate, sentRate) : rate;
+        rate = Math.max(minRate, current * DECREASE_FACTOR);
+        tokens = Math.min(tokens, getBurst());
+        Logger.getGlobal().info(name + " rate decreased to " + (long) rate + " B/s");
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(getBurst(), tokens + (now - lastRefill) / 1e9 * rate);
+        lastRefill = now;
+    }
+
+    private void measure(int bytes) {
+        long now = System.nanoTime();
+        windowBytes += bytes;
+        long elapsed = now - windowStart;
+        if (elapsed >= TimeUnit.SECONDS.toNanos(2)) {
+            // The channel was idle, the rate it was using is unknown
+            sentRate = 0;
+            windowStart = now;
+            windowBytes = 0;
+        } else if (elapsed >= TimeUnit.SECONDS.toNanos(1)) {
+            sentRate = windowBytes / (elapsed / 1e9);
+            windowStart = now;
+            windowBytes = 0;
+        }
+    }
+
+    private double getBurst() {
+        return Math.max(MIN_BURST, rate * BURST_MS / 1000);
+    }
+
+    public synchronized long getRate() {
+        return (long) rate;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + " rate: " + (long) rate + " of " + maxRate + " B/s, " + retransmissions + " retransmissions";
+    }
+}
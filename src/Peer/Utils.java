@@ -8,16 +8,15 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.PriorityQueue;
-import java.util.Queue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 public class Utils {
-    private static final ScheduledThreadPoolExecutor scheduler = (ScheduledThreadPoolExecutor) Executors.newScheduledThreadPool(5);
+    private static final int TIMER_TICK_MS = 10;
+    private static final int TIMER_WHEEL_SIZE = 512;
+
+    private static final TaskExecutor executor = TaskExecutor.create();
+    // The timer only waits for the delays, the actions run on the task executor
+    private static final TimerWheel timer = new TimerWheel(TIMER_TICK_MS, TIMER_WHEEL_SIZE, executor::execute);
+
     public static boolean deleteFile(File file) {
         if (file.isDirectory()) {
             File[] children = file.listFiles();
@@ -32,23 +31,6 @@ public class Utils {
         return file.delete();
     }
 
-    /**
-     * Split file in array of chunks
-     * @param fileContent
-     * @return array of byte arrays with all chunks of fileContent
-     */
-    public static byte[][] getFileChunks(byte[] fileContent, int chunkSize) {
-        byte buffer[][] = new byte[fileContent.length/chunkSize + 1][chunkSize];
-
-        for(int i = 0; i < buffer.length; i++) {
-            System.arraycopy(fileContent, chunkSize*i, buffer[i], 0,
-                    i < buffer.length -1 ? chunkSize : fileContent.length % chunkSize);
-        }
-        buffer[buffer.length-1] = Utils.trim(buffer[buffer.length-1]);
-
-        return buffer;
-    }
-
     /**
      * Get chunk from a given position
      * @param fileContent
@@ -73,38 +55,55 @@ public class Utils {
      * @return text encoded
      */
     public static String getEncodeHash(String text)  {
-        MessageDigest digest = null;
+        byte[] hash = getDigest().digest(text.getBytes(StandardCharsets.UTF_8));
+        return toHex(hash);
+    }
+
+    /**
+     * Get a new SHA-256 digest
+     * @return the digest
+     */
+    public static MessageDigest getDigest() {
         try {
-            digest = MessageDigest.getInstance("SHA-256");
+            return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+            throw new IllegalStateException("SHA-256 not available", e);
         }
-        byte[] hash = digest.digest(text.getBytes(StandardCharsets.UTF_8));
+    }
 
-        StringBuilder sb = new StringBuilder(hash.length);
-        for(byte b : hash)
+    /**
+     * Encodes bytes as hexadecimal
+     * @param bytes
+     * @return text with two hexadecimal characters per byte
+     */
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes)
             sb.append(String.format("%02x", b));
         return sb.toString();
     }
 
     /**
-     * Removes all null bytes in the end of a byte array
-     * @param bytes the array to be trimmed
-     * @return byte[] trimmed array
+     * Runs the action after the given time
+     * @return the timeout of the action, to cancel it when it's no longer needed
      */
-    public static byte[] trim(byte[] bytes)
-    {
-        int i = bytes.length - 1;
-        while (i >= 0 && bytes[i] == 0)
-        {
-            --i;
-        }
+    public static TimerWheel.Timeout scheduleAction(Runnable run, long timeMs) {
+        return timer.schedule(run, timeMs);
+    }
 
-        return Arrays.copyOf(bytes, i + 1);
+    /**
+     * Runs the action on the task executor
+     */
+    public static void execute(Runnable run) {
+        executor.execute(run);
+    }
+
+    public static TaskExecutor getTaskExecutor() {
+        return executor;
     }
 
-    public static void scheduleAction(Runnable run, long timeMs) {
-        scheduler.schedule(run, timeMs, TimeUnit.MILLISECONDS);
+    public static TimerWheel getTimer() {
+        return timer;
     }
 
     public static long directorySize(File dir) {
@@ -139,11 +138,4 @@ public class Utils {
             return Files.readAllBytes(path);
         else return null;
     }
-
-    public static Queue<ChunkData> getQueueFromByteArray(byte[][] buf) {
-        Queue<ChunkData> queue = new LinkedList<>();
-        for (int i = 0; i < buf.length; i++)
-            queue.add(new ChunkData(i, buf[i]));
-        return queue;
-    }
-}
+}
\ No newline at end of file
@@ -1,101 +1,216 @@
 package Peer.protocols;
 
-import Common.messages.PutChunkMessage;
+import Common.remote.BackupOptions;
 import Peer.Peer;
 import Peer.Utils;
-import Peer.ChunkData;
-import Peer.ChunkMetadata;
+import Peer.ChunkRef;
+import Peer.ChunkSource;
+import Peer.Chunker;
 import Peer.FileData;
+import Peer.FileManifest;
+import Peer.ReedSolomon;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Queue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
-import static java.lang.Thread.sleep;
-
 
 public class Backup {
-    private static int chunksPending = 0;
-
-    private final int WINDOWSIZE = 10;
-    private final int NUM_RETRIES = 5;          // number of times it resends the message
-    private final int RESEND_TIMEOUT = 1000;    // 1 second
-
     private final Peer peer;
     private final int CHUNKSIZE;
     private final String CLIENT_DIRECTORY;
+    private final BackupScheduler scheduler;
+    private final AtomicInteger nextSessionId = new AtomicInteger();
+
+    private final int MAX_FINISHED_SESSIONS = 64;
+
+    // Sessions still running, by id
+    private final ConcurrentHashMap<Integer, BackupSession> sessions = new ConcurrentHashMap<>();
+    // Final state of the last sessions that ended, so their progress can still be checked without keeping their
+    // files and manifests, the oldest is dropped first
+    private final LinkedHashMap<Integer, FinishedSession> finished = new LinkedHashMap<Integer, FinishedSession>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, FinishedSession> eldest) {
+            return size() > MAX_FINISHED_SESSIONS;
+        }
+    };
 
     public Backup(Peer peer, String clientDirectory, int chunkSize) {
         this.peer = peer;
         CLIENT_DIRECTORY = clientDirectory;
         CHUNKSIZE = chunkSize;
+        scheduler = new BackupScheduler(peer);
+    }
+
+    /**
+     * Starts a new backup session for the file, sharing the MDB channel with the other running sessions.
+     * The file is split and hashed by another task, which submits the session to the scheduler, so this
+     * returns right away.
+     * @return the session, which doesn't send anything until the file is prepared
+     */
+    public BackupSession startBackup(File file, int replicationDegree, BackupOptions options) {
+        ReedSolomon erasureCode = options.isErasureCoding() ?
+                new ReedSolomon(options.getDataFragments(), options.getParityFragments()) : null;
+        BackupSession session = new BackupSession(nextSessionId.incrementAndGet(), file.getName(),
+                options.getWindowSize(), options.isCompression(), erasureCode, options.getParityGroupSize(), peer);
+        sessions.put(session.getSessionId(), session);
+        session.getCompletion().whenComplete((v, e) -> {
+            synchronized (finished) {
+                finished.put(session.getSessionId(), new FinishedSession(session.getState(), session.getProgress()));
+            }
+            sessions.remove(session.getSessionId());
+        });
+        Utils.execute(() -> prepare(session, file, replicationDegree, options));
+        return session;
     }
 
-    public void doBackup(File file, int replicationDegree) {
+    /**
+     * Splits the file in chunks and hashes them, finds the chunks already stored and submits the session with
+     * the others. Only the manifest, with the location and hash of each chunk, is kept in memory, the chunks
+     * are read again when they are sent.
+     */
+    private void prepare(BackupSession session, File file, int replicationDegree, BackupOptions options) {
+        String fileKey = Utils.getEncodeHash(file.getName()+Long.toString(file.lastModified()));
+        Path path = Paths.get(CLIENT_DIRECTORY + file.getName());
+
+        FileManifest manifest;
+        FileData fileData;
+        List<ChunkRef> chunksToSend;
         try {
-            byte[] fileContent = Files.readAllBytes(Paths.get(CLIENT_DIRECTORY + file.getName()));
-            byte fileChunks[][] = Utils.getFileChunks(fileContent, CHUNKSIZE);
-            Queue<ChunkData> chunkQueue = Utils.getQueueFromByteArray(fileChunks);
-            String fileId = Utils.getEncodeHash(file.getName()+Long.toString(file.lastModified()));
+            List<ChunkRef> chunks = Chunker.split(path, CHUNKSIZE, options.isContentDefinedChunking());
+            String fileId = options.isContentHash() ? Utils.toHex(Chunker.merkleRoot(chunks)) : fileKey;
+
+            // Only chunks whose content isn't stored yet are sent, so a modified file only sends the changed chunks
+            manifest = new FileManifest(fileKey, file.getName(), fileId, Files.size(path), options.isContentDefinedChunking());
+            manifest.getChunks().addAll(chunks);
+            chunksToSend = locateChunks(manifest, replicationDegree, options);
+            fileData = new FileData(fileId, replicationDegree, new ChunkSource(path, chunksToSend));
+        } catch (IOException | RuntimeException e) {
+            // Nothing waits for this task, so the session is the only way the error is reported
+            Logger.getGlobal().severe("Couldn't read " + file.getName() + ": " + e.getLocalizedMessage());
+            session.finish(e);
+            return;
+        }
 
-            FileData fileData = new FileData(fileId, replicationDegree, chunkQueue);
+        // The session may have been cancelled while the file was read
+        if (!session.prepared(fileData, manifest.getChunks().size() - chunksToSend.size())) {
             try {
-                handle(fileData);
-            } catch (InterruptedException e) {
-                Logger.getGlobal().warning("Exception when sending chunks: " + e.getLocalizedMessage());
+                fileData.getChunkSource().close();
+            } catch (IOException e) {
+                Logger.getGlobal().warning("Couldn't close file " + file.getName() + ": " + e.getLocalizedMessage());
             }
+            return;
+        }
+        session.getCompletion().thenRun(() -> {
+            peer.getManifests().add(manifest, session.getFailedChunks());
+            peer.getManifests().save();
+        });
+
+        Logger.getGlobal().info("Starting backup session " + session.getSessionId() + ": " + file.getName() + ", " +
+                chunksToSend.size() + " of " + manifest.getChunks().size() + " chunks to send");
+        scheduler.submit(session);
+    }
 
+    /**
+     * Sets where each chunk of the file is stored. Chunks with content already stored, by a previous version
+     * of the file or by other files, point to the existing copy, if it was stored with at least the degree asked
+     * for. The others are stored under the fileId of the file, numbered by their position in it, and are encoded
+     * as the options say.
+     * @return the chunks that have to be sent
+     */
+    private List<ChunkRef> locateChunks(FileManifest manifest, int replicationDegree, BackupOptions options) {
+        ArrayList<ChunkRef> chunksToSend = new ArrayList<>();
+        HashMap<String, ChunkRef> fileChunks = new HashMap<>();
+        // Erasure coded chunks ignore the replication degree, and can lose as many fragments as their parity
+        int repDeg = options.isErasureCoding() ? options.getParityFragments() + 1 : replicationDegree;
+
+        for (int chunkNo = 0; chunkNo < manifest.getChunks().size(); chunkNo++) {
+            ChunkRef chunk = manifest.getChunks().get(chunkNo);
+            ChunkRef stored = peer.getManifests().lookup(chunk.getHash());
+            if (stored != null && stored.getRepDeg() < repDeg)
+                stored = null;
+            if (stored == null)
+                stored = fileChunks.get(chunk.getHashHex());
+
+            if (stored != null) {
+                chunk.setLocation(stored.getFileId(), stored.getChunkNo());
+                chunk.setEncoded(stored.isEncoded());
+                chunk.setErasureCoding(stored.getDataFragments(), stored.getParityFragments());
+                chunk.setRepDeg(stored.getRepDeg());
+            } else {
+                chunk.setLocation(manifest.getFileId(), chunkNo);
+                chunk.setEncoded(options.isCompression());
+                chunk.setErasureCoding(options.getDataFragments(), options.getParityFragments());
+                chunk.setRepDeg(repDeg);
+                fileChunks.put(chunk.getHashHex(), chunk);
+                chunksToSend.add(chunk);
+            }
+        }
+        return chunksToSend;
+    }
 
+    public void doBackup(File file, int replicationDegree, BackupOptions options) {
+        try {
+            BackupSession session = startBackup(file, replicationDegree, options);
+            session.getCompletion().join();
+
+            if (session.getChunksFailed() > 0)
+                Logger.getGlobal().warning("Replication degree not reached for " + session.getChunksFailed() + " chunks");
             Logger.getGlobal().info("Finished backup...");
-        } catch (IOException e) {
-            e.printStackTrace();
+        } catch (CompletionException e) {
+            Logger.getGlobal().warning("Exception when sending chunks: " + e.getCause().getLocalizedMessage());
         }
     }
 
+    /**
+     * @return the session, or null if it isn't running
+     */
+    public BackupSession getSession(int sessionId) {
+        return sessions.get(sessionId);
+    }
 
-    private void handle(FileData fileData) throws InterruptedException {
-        ExecutorService es = Executors.newCachedThreadPool();
-        while (fileData.getChunkData().size() > 0) {
-            if (chunksPending >= WINDOWSIZE) {
-                    sleep(50);
-                    continue;
-            }
-
-            ChunkData chunkData = fileData.getChunkData().remove();
-            PutChunkMessage message =  new PutChunkMessage(Peer.PROTOCOL_VERSION, peer.getPeerId(), fileData.getFileId(),
-                    chunkData.getChunkNo(), fileData.getRepDeg(), chunkData.getChunkData());
-            chunksPending++;
-            es.execute(new Thread(() -> sendChunk(message, 0, RESEND_TIMEOUT)));
+    /**
+     * @return the final state of the session, or null if it is still running or ended too long ago
+     */
+    public FinishedSession getFinishedSession(int sessionId) {
+        synchronized (finished) {
+            return finished.get(sessionId);
         }
-        // Waits for all threads to finish or until the maximum number of seconds all retries would take + 1 second
-        es.shutdown();
-        es.awaitTermination(RESEND_TIMEOUT * (long)Math.pow(2, NUM_RETRIES) + 1000, TimeUnit.MILLISECONDS);
     }
 
-    private void sendChunk(PutChunkMessage message, int count, int timeout) {
-         try {
-             Logger.getGlobal().info("Sending chunk: " + message.getFileId() + " - " + message.getChunkNo() + "\n" +
-                     "Retry number: " + count + " of " + NUM_RETRIES);
-            peer.MessageUtils.sendMessage(message);
-            Utils.scheduleAction(() -> {
-                ChunkMetadata metadata = peer.getChunkCount().get(message.getChunkUID());
-                if (metadata != null && metadata.getPeerIds().size() >= message.getReplicationDeg()) {
-                    // If it received all confirmations (at least the same as the replication degree)
-                    chunksPending--;
-                } else if (count >= NUM_RETRIES - 1) {
-                    // If is last retry don't retry
-                    Logger.getGlobal().warning("Failed to receive chunk stored confirmation: " +
-                            message.getFileId() + " - " + message.getChunkNo());
-                } else sendChunk(message, count + 1, timeout * 2); // Otherwise try again with double timeout
-            }, timeout);
-        } catch (IOException e) {
-            Logger.getGlobal().severe("Failed to send chunk: " + e.getLocalizedMessage());
+    public BackupScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * State and progress of a session when it ended
+     */
+    public static class FinishedSession {
+        private final String state;
+        private final String progress;
+
+        private FinishedSession(String state, String progress) {
+            this.state = state;
+            this.progress = progress;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public String getProgress() {
+            return progress;
         }
     }
 }
@@ -0,0 +1,207 @@
+package Peer.protocols;
+
+import Common.messages.ParityMessage;
+import Peer.ChunkMetadata;
+import Peer.Peer;
+import Peer.TimerWheel;
+import Peer.Utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Sends the chunks of all running backup sessions through the MDB channel.
+ * Sessions take turns in round-robin, each sending at most one PutChunk message per turn, so every session
+ * gets the same share of the channel no matter the size of its file.
+ */
+public class BackupScheduler {
+    private final int NUM_RETRIES = 5;          // number of times it resends the message
+
+    private final Peer peer;
+    private final ArrayList<BackupSession> sessions = new ArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition sessionReady = lock.newCondition();
+    private int nextSession = 0;
+    private Thread senderThread;
+
+    public BackupScheduler(Peer peer) {
+        this.peer = peer;
+    }
+
+    /**
+     * Adds the session to the scheduler
+     * @return future completed when every chunk of the session was stored or ran out of retries
+     */
+    public CompletableFuture<Void> submit(BackupSession session) {
+        // Every chunk may already be stored under other files
+        if (session.getNumChunks() == 0) {
+            session.finish(null);
+            return session.getCompletion();
+        }
+
+        lock.lock();
+        try {
+            sessions.add(session);
+            if (senderThread == null) {
+                senderThread = new Thread(this::handleSessions);
+                senderThread.setDaemon(true);
+                senderThread.start();
+            }
+            sessionReady.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        session.getCompletion().whenComplete((v, e) -> {
+            lock.lock();
+            try {
+                sessions.remove(session);
+            } finally {
+                lock.unlock();
+            }
+        });
+        return session.getCompletion();
+    }
+
+    /**
+     * @return a snapshot of the running sessions
+     */
+    public List<BackupSession> getSessions() {
+        lock.lock();
+        try {
+            return new ArrayList<>(sessions);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes the sender thread, called whenever a session may have become ready to send
+     */
+    private void wake() {
+        lock.lock();
+        try {
+            sessionReady.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void handleSessions() {
+        while (true) {
+            try {
+                BackupSession session = awaitReadySession();
+                sendNextChunk(session);
+            } catch (InterruptedException e) {
+                Logger.getGlobal().warning("Backup scheduler interrupted: " + e.getLocalizedMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits for a session that can send, starting after the last session that sent
+     */
+    private BackupSession awaitReadySession() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                int size = sessions.size();
+                for (int i = 0; i < size; i++) {
+                    int index = (nextSession + i) % size;
+                    BackupSession session = sessions.get(index);
+                    if (session.isReady()) {
+                        nextSession = (index + 1) % size;
+                        return session;
+                    }
+                }
+                sessionReady.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void sendNextChunk(BackupSession session) {
+        BackupSession.OutgoingChunk chunk;
+        try {
+            chunk = session.nextChunk();
+        } catch (IOException e) {
+            Logger.getGlobal().severe("Failed to read chunk of " + session.getFileName() + ": " + e.getLocalizedMessage());
+            session.finish(e);
+            return;
+        }
+        if (chunk == null)
+            return;
+
+        if (chunk.getRetries() == 0) {
+            chunk.getStored().whenComplete((v, e) -> {
+                if (e == null) session.chunkStored();
+                else session.chunkFailed(chunk);
+                if (e == null && chunk.getRetries() == 0)
+                    peer.MessageUtils.getDataBucket().confirmed();
+                wake();
+            });
+        }
+        // The chunk may have been confirmed while it was waiting for its turn, or before it was ever sent when
+        // another session is sending it too
+        if (chunk.getStored().isDone())
+            return;
+        if (chunk.getRetries() > 0)
+            peer.getPendingChunks().retransmitted(chunk.getMessage().getChunkUID());
+
+        sendChunk(session, chunk);
+    }
+
+    /**
+     * Sends the chunk and schedules its retransmission. The first timeout comes from the measured round-trip
+     * time of Stored confirmations and doubles on every retry, plus the delay peers wait before storing.
+     */
+    private void sendChunk(BackupSession session, BackupSession.OutgoingChunk chunk) {
+        CompletableFuture<Void> stored = chunk.getStored();
+        int count = chunk.getRetries();
+        try {
+            Logger.getGlobal().info("Sending chunk: " + chunk.getMessage().getFileId() + " - " + chunk.getMessage().getChunkNo() + "\n" +
+                    "Retry number: " + count + " of " + NUM_RETRIES);
+            peer.MessageUtils.sendMessage(chunk.getMessage());
+            session.chunkSent(chunk);
+            if (count == 0) {
+                peer.getPendingChunks().sent(chunk.getMessage().getChunkUID());
+                ParityMessage parity = session.addToParityGroup(chunk.getMessage());
+                if (parity != null)
+                    peer.MessageUtils.sendMessage(parity);
+            }
+            TimerWheel.Timeout timeout = Utils.scheduleAction(() -> {
+                if (stored.isDone())
+                    return;
+
+                ChunkMetadata metadata = peer.getChunkCount().get(chunk.getMessage().getChunkUID());
+                if (metadata != null && metadata.getPeerIds().size() >= chunk.getMessage().getReplicationDeg()) {
+                    // Peers that already had the chunk don't answer again, but it was counted before
+                    stored.complete(null);
+                } else if (count >= NUM_RETRIES - 1) {
+                    // If is last retry don't retry
+                    Logger.getGlobal().warning("Failed to receive chunk stored confirmation: " +
+                            chunk.getMessage().getFileId() + " - " + chunk.getMessage().getChunkNo());
+                    stored.completeExceptionally(new TimeoutException("Replication degree not reached"));
+                } else {
+                    // Otherwise try again with double timeout, when it's the session turn, and send slower
+                    peer.MessageUtils.getDataBucket().retransmitted(peer.getPendingChunks().getRttEstimator().getTimeout());
+                    session.retransmit(chunk);
+                    wake();
+                }
+            }, peer.DELAY_MS + peer.getPendingChunks().getRttEstimator().getBackoffTimeout(count));
+            // The timeout is no longer needed once the replication degree is reached
+            stored.whenComplete((v, e) -> timeout.cancel());
+        } catch (IOException e) {
+            Logger.getGlobal().severe("Failed to send chunk: " + e.getLocalizedMessage());
+            stored.completeExceptionally(e);
+        }
+    }
+}
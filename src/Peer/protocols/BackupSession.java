@@ -0,0 +1,346 @@
+package Peer.protocols;
+
+import Common.messages.ChunkCodec;
+import Common.messages.ParityMessage;
+import Common.messages.PutChunkMessage;
+import Peer.ChunkData;
+import Peer.ChunkRef;
+import Peer.ChunkSource;
+import Peer.FileData;
+import Peer.Peer;
+import Peer.ReedSolomon;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * State of the backup of a single file: its own send window, the chunks waiting for confirmations and
+ * the chunks waiting to be sent again. Sessions are independent from each other and are driven by the
+ * BackupScheduler, which decides when each one is allowed to send.
+ * A session is created as soon as the backup is asked for, and is only given its file, once the file was split
+ * in chunks and hashed, before it is submitted to the scheduler.
+ */
+public class BackupSession {
+    private final int sessionId;
+    private final String fileName;
+    private volatile FileData fileData;     // null until the file is prepared
+    private boolean closed = false;
+    private final int windowSize;
+    private final boolean compress;
+    private final ReedSolomon erasureCode;    // null if chunks are replicated
+    private final ParityGroup parityGroup;    // null if no parity is sent
+    private final Peer peer;
+
+    // Fragments of the last chunk read that weren't sent yet
+    private final ConcurrentLinkedQueue<PutChunkMessage> fragments = new ConcurrentLinkedQueue<>();
+
+    // Chunks that timed out and have to be sent again, before any new chunk
+    private final ConcurrentLinkedQueue<OutgoingChunk> retransmissions = new ConcurrentLinkedQueue<>();
+    // Chunks sent and still waiting for their replication degree
+    private final Set<OutgoingChunk> outstanding = ConcurrentHashMap.newKeySet();
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger chunksSent = new AtomicInteger();
+    private final AtomicInteger chunksStored = new AtomicInteger();
+    private final AtomicInteger chunksFailed = new AtomicInteger();
+    private final Set<Integer> failedChunks = ConcurrentHashMap.newKeySet();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private int chunksDeduplicated = 0;
+    private final long startTime = System.currentTimeMillis();
+    private volatile long endTime = 0;
+
+    /**
+     * @param parityGroupSize number of chunks sent for each Parity message, or 0 to send no parity
+     */
+    public BackupSession(int sessionId, String fileName, int windowSize, boolean compress,
+                         ReedSolomon erasureCode, int parityGroupSize, Peer peer) {
+        this.sessionId = sessionId;
+        this.fileName = fileName;
+        this.windowSize = windowSize;
+        this.compress = compress;
+        this.erasureCode = erasureCode;
+        this.parityGroup = parityGroupSize > 0 ? new ParityGroup(parityGroupSize) : null;
+        this.peer = peer;
+    }
+
+    /**
+     * Gives the session the chunks of the file to send
+     * @param chunksDeduplicated number of chunks of the file not sent because their content was already stored
+     * @return false if the session already ended, in which case the file isn't used
+     */
+    public synchronized boolean prepared(FileData fileData, int chunksDeduplicated) {
+        if (closed)
+            return false;
+        this.fileData = fileData;
+        this.chunksDeduplicated = chunksDeduplicated;
+        return true;
+    }
+
+    /**
+     * @return true if the session has a chunk to send right now
+     */
+    public boolean isReady() {
+        if (completion.isDone())
+            return false;
+        return !retransmissions.isEmpty() ||
+                (inFlight.get() < windowSize && hasUnsentChunks());
+    }
+
+    /**
+     * @return true if there are chunks or fragments that were never sent
+     */
+    private boolean hasUnsentChunks() {
+        return !fragments.isEmpty() || fileData.getChunkSource().hasNext();
+    }
+
+    /**
+     * Gets the next chunk to send: a retransmission if there is one, otherwise the next chunk of the file
+     * @return the chunk to send, or null if the session has nothing to send
+     */
+    public OutgoingChunk nextChunk() throws IOException {
+        OutgoingChunk chunk = retransmissions.poll();
+        if (chunk != null)
+            return chunk;
+
+        if (inFlight.get() >= windowSize || !hasUnsentChunks())
+            return null;
+
+        // Counted before reading, so the session can't be seen as finished while the last chunk is read
+        inFlight.incrementAndGet();
+
+        PutChunkMessage message = fragments.poll();
+        if (message == null)
+            message = readChunk();
+        CompletableFuture<Void> stored = peer.getPendingChunks().register(message.getChunkUID(), message.getReplicationDeg());
+
+        chunksSent.incrementAndGet();
+        OutgoingChunk outgoing = new OutgoingChunk(message, stored);
+        outstanding.add(outgoing);
+        stored.whenComplete((v, e) -> outstanding.remove(outgoing));
+        return outgoing;
+    }
+
+    /**
+     * Reads the next chunk of the file. Chunks are only read from disk when there is room in the window to send them.
+     * @return the message with the chunk, or with its first fragment if it is erasure coded
+     */
+    private PutChunkMessage readChunk() throws IOException {
+        ChunkData chunkData = fileData.getChunkSource().next();
+        byte[] body = compress ? ChunkCodec.encode(chunkData.getChunkData()) : chunkData.getChunkData();
+
+        if (erasureCode == null) {
+            return new PutChunkMessage(compress ? Peer.COMPRESSION_VERSION : Peer.PROTOCOL_VERSION, peer.getPeerId(),
+                    fileData.getFileId(), chunkData.getChunkNo(), fileData.getRepDeg(), body);
+        }
+
+        // Each fragment is stored by a single peer, the parity fragments replace the replicas
+        byte[][] encoded = erasureCode.encode(body);
+        for (int i = 0; i < encoded.length; i++)
+            fragments.add(new PutChunkMessage(Peer.ERASURE_CODING_VERSION, peer.getPeerId(), fileData.getFileId(),
+                    ChunkRef.getFragmentNo(chunkData.getChunkNo(), i), 1, encoded[i]));
+        return fragments.poll();
+    }
+
+    /**
+     * Adds a chunk sent for the first time to the current parity group
+     * @return the parity to send if the group is complete, or if it was the last chunk of the file
+     */
+    public synchronized ParityMessage addToParityGroup(PutChunkMessage message) {
+        if (parityGroup == null)
+            return null;
+        parityGroup.add(message);
+        if (parityGroup.isFull() || !hasUnsentChunks())
+            return parityGroup.finish(peer.getPeerId());
+        return null;
+    }
+
+    /**
+     * Queues the chunk to be sent again
+     */
+    public void retransmit(OutgoingChunk chunk) {
+        chunk.retries++;
+        retransmissions.add(chunk);
+    }
+
+    public void chunkStored() {
+        chunksStored.incrementAndGet();
+        chunkFinished();
+    }
+
+    public void chunkFailed(OutgoingChunk chunk) {
+        int chunkNo = chunk.getMessage().getChunkNo();
+        failedChunks.add(erasureCode == null ? chunkNo : ChunkRef.getStripeNo(chunkNo));
+        chunksFailed.incrementAndGet();
+        chunkFinished();
+    }
+
+    public void chunkSent(OutgoingChunk chunk) {
+        bytesSent.addAndGet(chunk.getMessage().getChunkSize());
+    }
+
+    private void chunkFinished() {
+        if (inFlight.decrementAndGet() == 0 && !hasUnsentChunks())
+            finish(null);
+    }
+
+    /**
+     * Ends the session, closing the file
+     * @param error the reason the session failed, or null if it ended normally
+     */
+    public void finish(Throwable error) {
+        synchronized (this) {
+            closed = true;
+            try {
+                if (fileData != null)
+                    fileData.getChunkSource().close();
+            } catch (IOException e) {
+                Logger.getGlobal().warning("Couldn't close file " + fileName + ": " + e.getLocalizedMessage());
+            }
+        }
+
+        if (endTime == 0)
+            endTime = System.currentTimeMillis();
+        if (error == null) completion.complete(null);
+        else completion.completeExceptionally(error);
+    }
+
+    /**
+     * Stops sending chunks. Chunks already sent stop waiting for confirmations.
+     * @return false if the session had already ended
+     */
+    public boolean cancel() {
+        if (completion.isDone())
+            return false;
+
+        finish(new CancellationException("Backup cancelled"));
+        for (OutgoingChunk chunk : outstanding)
+            chunk.getStored().completeExceptionally(new CancellationException("Backup cancelled"));
+        return true;
+    }
+
+    /**
+     * @return the state of the session: RUNNING, COMPLETED, FAILED or CANCELLED
+     */
+    public String getState() {
+        if (!completion.isDone())
+            return "RUNNING";
+        if (completion.isCancelled())
+            return "CANCELLED";
+        if (completion.isCompletedExceptionally() || chunksFailed.get() > 0)
+            return "FAILED";
+        return "COMPLETED";
+    }
+
+    /**
+     * @return a description of the progress of the session
+     */
+    public String getProgress() {
+        long elapsed = Math.max(1, (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime);
+        double bytesPerSecond = getBytesSent() * 1000.0 / elapsed;
+        int done = getChunksStored() + getChunksFailed();
+        int remaining = getNumChunks() - done;
+
+        String text = "Job " + sessionId + ": backup of " + fileName + " (" + getState() + ")";
+        text += "\n     FileId: " + (fileData == null ? "unknown, reading the file" : getFileId());
+        text += "\n     Chunks sent: " + getChunksSent() + " of " + getNumChunks();
+        text += "\n     Chunks acknowledged: " + getChunksStored();
+        text += "\n     Chunks failed: " + getChunksFailed();
+        text += "\n     Chunks already stored (not sent): " + getChunksDeduplicated();
+        text += "\n     Throughput: " + String.format("%.1f", bytesPerSecond / 1000.0) + "KB/s";
+        if (endTime == 0) {
+            if (done > 0)
+                text += "\n     ETA: " + String.format("%.1f", remaining * (elapsed / 1000.0) / done) + "s";
+            else text += "\n     ETA: unknown";
+        } else text += "\n     Elapsed: " + String.format("%.1f", elapsed / 1000.0) + "s";
+        return text;
+    }
+
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getFileId() {
+        return fileData.getFileId();
+    }
+
+    /**
+     * @return the number of messages the session sends, one per fragment if chunks are erasure coded
+     */
+    public int getNumChunks() {
+        if (fileData == null)
+            return 0;
+        if (erasureCode != null)
+            return fileData.getChunkSource().getNumChunks() * (erasureCode.getDataFragments() + erasureCode.getParityFragments());
+        return fileData.getChunkSource().getNumChunks();
+    }
+
+    public int getChunksSent() {
+        return chunksSent.get();
+    }
+
+    public int getChunksStored() {
+        return chunksStored.get();
+    }
+
+    public int getChunksFailed() {
+        return chunksFailed.get();
+    }
+
+    public Set<Integer> getFailedChunks() {
+        return failedChunks;
+    }
+
+    public synchronized int getChunksDeduplicated() {
+        return chunksDeduplicated;
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * A chunk sent by the session and still waiting for its replication degree
+     */
+    public static class OutgoingChunk {
+        private final PutChunkMessage message;
+        private final CompletableFuture<Void> stored;
+        private int retries = 0;
+
+        private OutgoingChunk(PutChunkMessage message, CompletableFuture<Void> stored) {
+            this.message = message;
+            this.stored = stored;
+        }
+
+        public PutChunkMessage getMessage() {
+            return message;
+        }
+
+        public CompletableFuture<Void> getStored() {
+            return stored;
+        }
+
+        public int getRetries() {
+            return retries;
+        }
+    }
+}
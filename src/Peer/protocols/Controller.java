@@ -1,5 +1,6 @@
 package Peer.protocols;
 
+import Common.remote.BackupOptions;
 import Common.remote.IControl;
 import Peer.Peer;
 
@@ -38,8 +39,12 @@ public class Controller implements IControl {
      */
     @Override
     public String backup(File file, int replicationDegree) {
-        peer.isInitiatorPeer = true;
-        backup.doBackup(file, replicationDegree);
+        return backup(file, replicationDegree, new BackupOptions());
+    }
+
+    @Override
+    public String backup(File file, int replicationDegree, BackupOptions options) {
+        backup.doBackup(file, replicationDegree, options);
         return "Operation backup...";
     }
 
@@ -68,6 +73,49 @@ public class Controller implements IControl {
         return state.getState();
     }
 
+    /**
+     * Starts the backup and returns without waiting for it to finish
+     * @return id of the backup job
+     */
+    @Override
+    public String submitBackup(File file, int replicationDegree, BackupOptions options) throws RemoteException {
+        return Integer.toString(backup.startBackup(file, replicationDegree, options).getSessionId());
+    }
+
+    @Override
+    public String status(String jobId) throws RemoteException {
+        BackupSession session = getJob(jobId);
+        if (session != null)
+            return session.getProgress();
+        Backup.FinishedSession finished = getFinishedJob(jobId);
+        return finished == null ? "Unknown job: " + jobId : finished.getProgress();
+    }
+
+    @Override
+    public String cancel(String jobId) throws RemoteException {
+        BackupSession session = getJob(jobId);
+        if (session != null)
+            return session.cancel() ? "Job " + jobId + " cancelled" : "Job " + jobId + " already " + session.getState();
+        Backup.FinishedSession finished = getFinishedJob(jobId);
+        return finished == null ? "Unknown job: " + jobId : "Job " + jobId + " already " + finished.getState();
+    }
+
+    private BackupSession getJob(String jobId) {
+        try {
+            return backup.getSession(Integer.parseInt(jobId));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private Backup.FinishedSession getFinishedJob(String jobId) {
+        try {
+            return backup.getFinishedSession(Integer.parseInt(jobId));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     public void validateDeleted() {
         validateDeleted.doValidateDeleted();
     }
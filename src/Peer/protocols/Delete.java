@@ -7,6 +7,8 @@ import Peer.Utils;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Set;
+import java.util.logging.Logger;
 
 public class Delete {
     private final Peer peer;
@@ -17,9 +19,18 @@ public class Delete {
 
     public void doDelete(File file) {
         try {
-            String fileId = Utils.getEncodeHash(file.getName()+file.lastModified());
-            DeleteMessage message = new DeleteMessage(Peer.PROTOCOL_VERSION, peer.getPeerId(), fileId);
-            peer.MessageUtils.sendMessage(message);
+            String fileKey = Utils.getEncodeHash(file.getName()+file.lastModified());
+
+            // Chunks still referenced by other backed up files are kept
+            Set<String> fileIds = peer.getManifests().remove(fileKey);
+            peer.getManifests().save();
+            if (fileIds.isEmpty())
+                Logger.getGlobal().info("Chunks of " + file.getName() + " are still used by other files, keeping them");
+
+            for (String fileId : fileIds) {
+                DeleteMessage message = new DeleteMessage(Peer.PROTOCOL_VERSION, peer.getPeerId(), fileId);
+                peer.MessageUtils.sendMessage(message);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,79 @@
+package Peer.protocols;
+
+import Common.messages.ParityMessage;
+import Common.messages.PutChunkMessage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Accumulates the XOR parity of the PutChunk messages of a backup session, a group of chunks at a time.
+ * Every chunk of a group has the same version and replication degree, since they come from the same session.
+ */
+public class ParityGroup {
+    private final int groupSize;
+    private final int[] chunkNos;
+    private final int[] lengths;
+    private byte[] parity = new byte[0];
+    private int parityLength = 0;
+    private int count = 0;
+    private PutChunkMessage first;
+
+    /**
+     * @param groupSize number of chunks protected by each parity, at most ParityMessage.MAX_GROUP_SIZE
+     */
+    public ParityGroup(int groupSize) {
+        this.groupSize = groupSize;
+        this.chunkNos = new int[groupSize];
+        this.lengths = new int[groupSize];
+    }
+
+    /**
+     * Adds the body of the chunk to the parity of the group
+     */
+    public void add(PutChunkMessage message) {
+        int length = message.getBodyLength();
+        if (length > parity.length) {
+            byte[] larger = new byte[Math.max(length, 2 * parity.length)];
+            System.arraycopy(parity, 0, larger, 0, parityLength);
+            parity = larger;
+        }
+
+        ByteBuffer body = message.getBodyBuffer();
+        for (int i = 0; i < length; i++)
+            parity[i] ^= body.get(i);
+        parityLength = Math.max(parityLength, length);
+
+        if (count == 0)
+            first = message;
+        chunkNos[count] = message.getChunkNo();
+        lengths[count] = length;
+        count++;
+    }
+
+    public boolean isFull() {
+        return count == groupSize;
+    }
+
+    /**
+     * Ends the group and starts a new one
+     * @return the parity of the group, or null if it has a single chunk, which would only be sent twice
+     */
+    public ParityMessage finish(int senderId) {
+        ParityMessage message = null;
+        if (count > 1) {
+            int[] groupChunkNos = new int[count];
+            int[] groupLengths = new int[count];
+            System.arraycopy(chunkNos, 0, groupChunkNos, 0, count);
+            System.arraycopy(lengths, 0, groupLengths, 0, count);
+            message = new ParityMessage(first.getVersion(), senderId, first.getFileId(), first.getReplicationDeg(),
+                    groupChunkNos, groupLengths, parity, parityLength);
+        }
+
+        Arrays.fill(parity, 0, parityLength, (byte) 0);
+        parityLength = 0;
+        count = 0;
+        first = null;
+        return message;
+    }
+}
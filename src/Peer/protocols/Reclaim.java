@@ -36,7 +36,7 @@ public class Reclaim {
             peer.logCapacityInfo();
 
             try {
-                peer.MessageUtils.sendMessage(message);
+                peer.getControlBatcher().send(message);
             } catch (IOException e) {
                 Logger.getGlobal().warning("Error sending reclaim message: " + e.getLocalizedMessage());
             }
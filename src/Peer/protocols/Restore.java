@@ -1,30 +1,20 @@
 package Peer.protocols;
 
-import Common.messages.ChunkMessage;
-import Common.messages.GetChunkMessage;
-import Common.messages.Message;
+import Peer.FileManifest;
 import Peer.Peer;
 import Peer.Utils;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.net.DatagramPacket;
-import java.net.Socket;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Set;
 import java.util.logging.Logger;
 
 public class Restore {
     private final Peer peer;
     private final int CHUNKSIZE;
     private final String CLIENT_DIRECTORY;
-    private Thread tcpThread;
 
     public Restore(Peer peer, String clientDirectory, int chunksize) {
         this.peer = peer;
@@ -33,85 +23,31 @@ public class Restore {
     }
 
     public void doRestore(File file) {
-        startTcpListener();
-        try {
-            byte fileContent[] = Files.readAllBytes(Paths.get(CLIENT_DIRECTORY + file.getName()));
-
-            //  calcular quantos chunks serão necessários
-            int noChunks = fileContent.length/CHUNKSIZE + 1;
-
-            // pede sequencialmente e colecionar num hashmap<chunkNo, conteúdo>
-            getAllChunksFile(file, noChunks);
+        Path path = Paths.get(CLIENT_DIRECTORY, "restoredfiles", file.getName());
+        String fileKey = Utils.getEncodeHash(file.getName()+file.lastModified());
+        FileManifest manifest = peer.getManifests().get(fileKey);
 
-            Utils.scheduleAction(() -> {
-                String fileId = Utils.getEncodeHash(file.getName()+file.lastModified());
-                if(!peer.getRestore().containsKey(fileId) || peer.getRestore().get(fileId).size() < noChunks) {
-                        doRestore(file);
-                }
-                else{
-                    //restore file
-                    try {
-                        restoreFile(file, fileContent.length, fileId);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    Logger.getGlobal().info("Restore file completed");
-                }
-            }, peer.DELAY_MS);
-
-        } catch (IOException | InterruptedException e) {
+        RestoreSink sink;
+        try {
+            if (manifest != null) {
+                // The manifest lists the chunks in order and where each one is stored
+                sink = RestoreSink.forManifest(path, manifest);
+            } else {
+                long size = Files.size(Paths.get(CLIENT_DIRECTORY + file.getName()));
+                sink = RestoreSink.forFixedChunks(path, fileKey, size, CHUNKSIZE);
+            }
+        } catch (IOException e) {
             e.printStackTrace();
-        }
-    }
-
-    private void restoreFile(File file, int size, String fileId) throws IOException {
-        HashMap<String, HashMap<Integer, byte[]>> hash = peer.getRestore();
-        HashMap<Integer, byte[]>  fileChunks = hash.get(fileId);
-        Set entrySet = fileChunks.entrySet();
-        Iterator it = entrySet.iterator();
-
-        // Iterate through HashMap entries(Key-Value pairs)
-        FileOutputStream fos = new FileOutputStream(CLIENT_DIRECTORY + File.separator +
-                "restoredfiles" + File.separator + file.getName(), false);
-
-        while(it.hasNext() && size > 0){
-            Map.Entry content = (Map.Entry)it.next();
-            byte[] bytes = Utils.trim((byte[]) content.getValue());
-            fos.write(bytes, 0, Math.min(bytes.length, size));
-            size -= bytes.length;
+            return;
         }
 
-        fos.close();
-    }
-
-    private void getAllChunksFile(File file, int noChunks) throws IOException, InterruptedException {
-
-        String fileId = Utils.getEncodeHash(file.getName()+file.lastModified());
-
-        for(int i = 0; i < noChunks; i ++){
-            GetChunkMessage message = new GetChunkMessage(Peer.PROTOCOL_VERSION, peer.getPeerId(), fileId, i);
-            peer.MessageUtils.sendMessage(message);
-        }
-    }
-
-    private void startTcpListener() {
-        tcpThread = new Thread(() -> {
-            try {
-                Socket clientSocket = peer.getTcpSocket().accept();
-                ObjectInputStream inMessage = new ObjectInputStream(clientSocket.getInputStream());
-                ChunkMessage message = (ChunkMessage)inMessage.readObject();
-                Logger.getGlobal().info("Received chunk " + message.getChunkNo() + " through TCP: " + message.getMessageType() + " from peer " + message.getSenderId());
-                peer.CommunicationChannels.handleChunkMessage(message);
-                inMessage.close();
-                clientSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            } catch (ClassNotFoundException e) {
-                e.printStackTrace();
-            }
+        peer.addRestoreSink(sink);
+        sink.getCompletion().whenComplete((v, e) -> {
+            peer.removeRestoreSink(sink);
+            if (e == null) Logger.getGlobal().info("Restore file completed");
+            else Logger.getGlobal().severe("Restore of " + file.getName() + " failed: " + e.getLocalizedMessage());
         });
-
-        tcpThread.start();
-
+        // The holder asked, or the one ranked first through MC, answers right away
+        new RestorePipeline(peer, sink, peer.DELAY_MS, RestorePipeline.getMode()).start();
     }
 }
@@ -0,0 +1,271 @@
+package Peer.protocols;
+
+import Common.messages.GetChunkMessage;
+import Peer.ChunkMetadata;
+import Peer.Peer;
+import Peer.TimerWheel;
+import Peer.Utils;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Requests the chunks of a file being restored, keeping at most WINDOW_SIZE of them in flight. Each request
+ * has its own timeout, and only the chunk that timed out is requested again, with the timeout doubled, so a
+ * lost chunk doesn't make the whole file be requested again. A new chunk is requested as soon as one arrives.
+ *
+ * The mode is chosen with the peer.restore system property. MULTICAST sends every request through MC, and
+ * every peer with the chunk races to answer it. STRIPED sends each request to a single peer known to store
+ * the chunk, through its connection, spreading the chunks across the peers that have them, so each peer
+ * has its own window and the file is pulled from all of them at once. A chunk that times out is requested
+ * from its next holder, and chunks with no known holder, or whose holders all failed, go through MC.
+ */
+public class RestorePipeline {
+    public static final String MODE_PROPERTY = "peer.restore";
+    public static final int WINDOW_SIZE = 16;      // requests in flight, for each peer the chunks are requested from
+    public static final int MAX_RETRIES = 5;
+    private static final int MULTICAST = -1;       // holder of the requests sent through MC
+
+    public enum Mode {
+        MULTICAST,
+        STRIPED
+    }
+
+    private final Peer peer;
+    private final RestoreSink sink;
+    private final long timeoutMs;
+    private final Mode mode;
+    // Requests in flight to each peer, MULTICAST for the ones sent through MC
+    private final HashMap<Integer, Integer> load = new HashMap<>();
+    private int windowSize = WINDOW_SIZE;
+    private final ArrayDeque<RestoreSink.ChunkRequest> queue = new ArrayDeque<>();
+    // Requests sent and not answered yet, by chunkUID
+    private final HashMap<String, Pending> inFlight = new HashMap<>();
+    private int rounds = 0;
+
+    /**
+     * @param timeoutMs time to wait for a chunk before requesting it again, doubled on each retry
+     */
+    public RestorePipeline(Peer peer, RestoreSink sink, long timeoutMs, Mode mode) {
+        this.peer = peer;
+        this.sink = sink;
+        this.timeoutMs = timeoutMs;
+        this.mode = mode;
+    }
+
+    /**
+     * @return the mode set by the system property, STRIPED by default
+     */
+    public static Mode getMode() {
+        String property = System.getProperty(MODE_PROPERTY, Mode.STRIPED.name());
+        try {
+            return Mode.valueOf(property.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            Logger.getGlobal().warning("Unknown restore mode " + property + ", using " + Mode.MULTICAST);
+            return Mode.MULTICAST;
+        }
+    }
+
+    public void start() {
+        sink.setListener(this::received);
+        // The sink completes while holding its own lock, so the timeouts are cancelled from another thread
+        sink.getCompletion().whenCompleteAsync((v, e) -> cancel(), Utils::execute);
+        List<Request> requests;
+        synchronized (this) {
+            if (mode == Mode.STRIPED) {
+                Set<Integer> sources = new HashSet<>();
+                for (RestoreSink.ChunkRequest request : sink.getMissing())
+                    sources.addAll(getHolders(request));
+                windowSize = WINDOW_SIZE * Math.max(1, sources.size());
+                Logger.getGlobal().info("Restoring from " + sources.size() + " peers: " + sources);
+            }
+            requests = fill();
+        }
+        send(requests);
+    }
+
+    /**
+     * Frees the place of the chunk in the window and requests the next one
+     */
+    private void received(String chunkUID) {
+        List<Request> requests;
+        synchronized (this) {
+            Pending pending = inFlight.remove(chunkUID);
+            if (pending == null)
+                return;
+            release(pending);
+            requests = fill();
+        }
+        send(requests);
+    }
+
+    private void timedOut(Pending pending) {
+        RestoreSink.ChunkRequest request = pending.request;
+        List<Request> requests;
+        synchronized (this) {
+            if (inFlight.get(request.getChunkUID()) != pending)
+                return;
+
+            release(pending);
+            if (sink.isMissing(request) && pending.retries < MAX_RETRIES) {
+                // The next time the chunk is asked from another of its holders
+                if (pending.holder != MULTICAST)
+                    pending.tried.add(pending.holder);
+                pending.retries++;
+                requests = new ArrayList<>();
+                requests.add(request(pending));
+            } else {
+                inFlight.remove(request.getChunkUID());
+                if (sink.isMissing(request)) {
+                    Logger.getGlobal().warning("Chunk " + request.getChunkUID() + " wasn't received after " +
+                            MAX_RETRIES + " retries");
+                    sink.failed(request);
+                }
+                requests = fill();
+            }
+        }
+        send(requests);
+    }
+
+    /**
+     * Frees the window of the requests no longer needed, like the fragments left of an erasure coded chunk
+     * already rebuilt, then requests chunks until the window is full. When every chunk was requested but the file is still missing
+     * some, like the fragments of an erasure coded chunk that didn't pass the integrity check, they are
+     * queued again, at most MAX_RETRIES times.
+     * @return the requests to send
+     */
+    private List<Request> fill() {
+        ArrayList<Request> requests = new ArrayList<>();
+        if (sink.getCompletion().isDone())
+            return requests;
+
+        inFlight.values().removeIf(pending -> {
+            if (sink.isMissing(pending.request))
+                return false;
+            release(pending);
+            return true;
+        });
+
+        if (queue.isEmpty() && inFlight.isEmpty() && rounds++ <= MAX_RETRIES)
+            queue.addAll(sink.getMissing());
+
+        while (inFlight.size() < windowSize && !queue.isEmpty()) {
+            RestoreSink.ChunkRequest request = queue.poll();
+            if (!sink.isMissing(request) || inFlight.containsKey(request.getChunkUID()))
+                continue;
+            Pending pending = new Pending(request);
+            inFlight.put(request.getChunkUID(), pending);
+            requests.add(request(pending));
+        }
+
+        if (inFlight.isEmpty() && !sink.getCompletion().isDone())
+            sink.close(new IOException("Couldn't get every chunk of the file"));
+        return requests;
+    }
+
+    /**
+     * Chooses the peer to ask for the chunk and schedules the timeout of the request
+     * @return the request to send
+     */
+    private Request request(Pending pending) {
+        pending.holder = chooseHolder(pending);
+        load.merge(pending.holder, 1, Integer::sum);
+        pending.timeout = Utils.scheduleAction(() -> timedOut(pending), timeoutMs << pending.retries);
+        return new Request(pending.holder, new GetChunkMessage(Peer.PROTOCOL_VERSION, peer.getPeerId(),
+                pending.request.getFileId(), pending.request.getChunkNo()));
+    }
+
+    /**
+     * @return the holder of the chunk not tried yet with the fewest requests in flight, or MULTICAST if
+     * there is none
+     */
+    private int chooseHolder(Pending pending) {
+        if (mode == Mode.MULTICAST)
+            return MULTICAST;
+
+        int best = MULTICAST;
+        for (int holder : getHolders(pending.request)) {
+            if (pending.tried.contains(holder))
+                continue;
+            if (best == MULTICAST || load.getOrDefault(holder, 0) < load.getOrDefault(best, 0))
+                best = holder;
+        }
+        // Once every holder was tried, the chunk is asked through MC, then from the holders again
+        if (best == MULTICAST)
+            pending.tried.clear();
+        return best;
+    }
+
+    /**
+     * @return the other peers that confirmed they store the chunk
+     */
+    private Set<Integer> getHolders(RestoreSink.ChunkRequest request) {
+        HashSet<Integer> holders = new HashSet<>();
+        ChunkMetadata metadata = peer.getChunkCount().get(request.getChunkUID());
+        if (metadata != null) {
+            synchronized (peer.getChunkCount()) {
+                holders.addAll(metadata.getPeerIds());
+            }
+        }
+        holders.remove(peer.getPeerId());
+        return holders;
+    }
+
+    private void release(Pending pending) {
+        pending.timeout.cancel();
+        load.merge(pending.holder, -1, Integer::sum);
+    }
+
+    /**
+     * Sends the requests, outside the lock since sending may block. A request to a peer that can't be
+     * reached goes through MC instead.
+     */
+    private void send(List<Request> requests) {
+        try {
+            for (Request request : requests) {
+                if (request.holder == MULTICAST || !peer.MessageUtils.getDataPlane().send(request.holder, request.message))
+                    peer.getControlBatcher().send(request.message);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void cancel() {
+        for (Pending pending : inFlight.values())
+            release(pending);
+        inFlight.clear();
+        queue.clear();
+    }
+
+    private static class Pending {
+        private final RestoreSink.ChunkRequest request;
+        private final Set<Integer> tried = new HashSet<>();   // holders that didn't answer
+        private int retries = 0;
+        private int holder;
+        private TimerWheel.Timeout timeout;
+
+        private Pending(RestoreSink.ChunkRequest request) {
+            this.request = request;
+        }
+    }
+
+    /**
+     * A GetChunk message and the peer to send it to
+     */
+    private static class Request {
+        private final int holder;
+        private final GetChunkMessage message;
+
+        private Request(int holder, GetChunkMessage message) {
+            this.holder = holder;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package Peer.protocols;
+
+import Common.messages.ChunkCodec;
+import Common.messages.ChunkMessage;
+import Peer.ChunkRef;
+import Peer.FileManifest;
+import Peer.ReedSolomon;
+import Peer.Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+
+/**
+ * Writes the chunks of a file being restored straight to their place in the restored file, as they arrive,
+ * so the file is never kept in memory. Each stored chunk is a slot, written at every offset of the file it
+ * appears in, and a bitmap tracks the slots already written. The completion future is completed as soon as
+ * the last slot is written.
+ * Only the fragments of erasure coded chunks are kept in memory, until there are enough to rebuild the chunk.
+ */
+public class RestoreSink {
+    private final Path path;
+    private final FileChannel channel;
+    private final List<Slot> slots = new ArrayList<>();
+    // Slot of each chunk or fragment requested, by chunkUID
+    private final HashMap<String, Slot> slotsByChunk = new HashMap<>();
+    private final BitSet written = new BitSet();
+    private int numWritten = 0;
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private volatile Consumer<String> listener;
+
+    private RestoreSink(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Creates a sink for a file with a manifest. Chunks are checked against the hashes in the manifest.
+     */
+    public static RestoreSink forManifest(Path path, FileManifest manifest) throws IOException {
+        RestoreSink sink = new RestoreSink(path);
+        LinkedHashMap<String, Slot> stored = new LinkedHashMap<>();
+        for (ChunkRef chunk : manifest.getChunks()) {
+            Slot slot = stored.get(chunk.getChunkUID());
+            if (slot == null) {
+                slot = sink.addSlot(chunk.getFileId(), chunk.getChunkNo(), chunk.getLength(), chunk.getHash(),
+                        chunk.isEncoded(), chunk.isErasureCoded() ? chunk : null);
+                stored.put(chunk.getChunkUID(), slot);
+            }
+            slot.offsets.add(chunk.getOffset());
+        }
+        sink.checkComplete();
+        return sink;
+    }
+
+    /**
+     * Creates a sink for a file backed up in chunks of a fixed size, without a manifest
+     */
+    public static RestoreSink forFixedChunks(Path path, String fileId, long fileSize, int chunkSize) throws IOException {
+        RestoreSink sink = new RestoreSink(path);
+        int numChunks = (int) (fileSize / chunkSize) + 1;
+        for (int i = 0; i < numChunks; i++) {
+            long offset = (long) i * chunkSize;
+            Slot slot = sink.addSlot(fileId, i, (int) Math.min(chunkSize, fileSize - offset), null, false, null);
+            slot.offsets.add(offset);
+        }
+        sink.checkComplete();
+        return sink;
+    }
+
+    private Slot addSlot(String fileId, int chunkNo, int length, byte[] hash, boolean encoded, ChunkRef erasureCoded) {
+        Slot slot = new Slot(slots.size(), fileId, chunkNo, length, hash, encoded, erasureCoded);
+        slots.add(slot);
+        if (erasureCoded == null) {
+            slotsByChunk.put(fileId + chunkNo, slot);
+        } else {
+            for (int i = 0; i < slot.fragments.length; i++)
+                slotsByChunk.put(fileId + erasureCoded.getFragmentNo(i), slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Writes the chunk if it belongs to the file and wasn't written yet, and tells the listener the chunk was
+     * received if it was accepted
+     */
+    public void received(ChunkMessage message) {
+        if (accept(message) && listener != null)
+            listener.accept(message.getChunkUID());
+    }
+
+    /**
+     * @return true if the chunk was written, or kept until there are enough fragments to rebuild it
+     */
+    private synchronized boolean accept(ChunkMessage message) {
+        Slot slot = slotsByChunk.get(message.getChunkUID());
+        if (slot == null || written.get(slot.index) || completion.isDone())
+            return false;
+
+        ByteBuffer body;
+        if (slot.erasureCoded == null) {
+            body = message.getBodyBuffer();
+        } else {
+            byte[] rebuilt = slot.addFragment(message);
+            if (rebuilt == null)
+                return slot.fragments[slot.getFragment(message.getChunkNo())] != null;
+            body = ByteBuffer.wrap(rebuilt);
+        }
+
+        ByteBuffer content = slot.check(body);
+        if (content == null)
+            return false;
+
+        try {
+            for (long offset : slot.offsets) {
+                ByteBuffer buffer = content.duplicate();
+                buffer.limit(buffer.position() + slot.length);
+                long position = offset;
+                while (buffer.hasRemaining())
+                    position += channel.write(buffer, position);
+            }
+        } catch (IOException e) {
+            Logger.getGlobal().severe("Couldn't write to " + path + ": " + e.getLocalizedMessage());
+            close(e);
+            return false;
+        }
+        slot.fragments = null;
+        written.set(slot.index);
+        numWritten++;
+        checkComplete();
+        return true;
+    }
+
+    private void checkComplete() {
+        if (numWritten == slots.size())
+            close(null);
+    }
+
+    /**
+     * Closes the file and completes the future, with the error if the restore failed
+     */
+    public synchronized void close(Throwable error) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Logger.getGlobal().warning("Couldn't close " + path + ": " + e.getLocalizedMessage());
+        }
+        if (error == null) completion.complete(null);
+        else completion.completeExceptionally(error);
+    }
+
+    /**
+     * @return the chunks to request to get the slots not written yet: the chunk of a replicated slot, or
+     * the fragments of an erasure coded slot that weren't received
+     */
+    public synchronized List<ChunkRequest> getMissing() {
+        ArrayList<ChunkRequest> missing = new ArrayList<>();
+        for (int i = written.nextClearBit(0); i < slots.size(); i = written.nextClearBit(i + 1)) {
+            Slot slot = slots.get(i);
+            if (slot.erasureCoded == null) {
+                missing.add(new ChunkRequest(slot.fileId, slot.chunkNo));
+                continue;
+            }
+            for (int j = 0; j < slot.fragments.length; j++)
+                if (slot.fragments[j] == null)
+                    missing.add(new ChunkRequest(slot.fileId, slot.erasureCoded.getFragmentNo(j)));
+        }
+        return missing;
+    }
+
+    /**
+     * @return true if the chunk or fragment is still needed to restore the file
+     */
+    public synchronized boolean isMissing(ChunkRequest request) {
+        Slot slot = slotsByChunk.get(request.getChunkUID());
+        if (slot == null || written.get(slot.index) || completion.isDone())
+            return false;
+        return slot.erasureCoded == null || slot.fragments[slot.getFragment(request.getChunkNo())] == null;
+    }
+
+    /**
+     * Gives up on the chunk or fragment. The restore fails, unless the chunk is erasure coded and there are
+     * still enough fragments that can be received to rebuild it.
+     */
+    public synchronized void failed(ChunkRequest request) {
+        Slot slot = slotsByChunk.get(request.getChunkUID());
+        if (slot == null || written.get(slot.index) || completion.isDone())
+            return;
+        if (slot.erasureCoded != null && ++slot.failedFragments <= slot.erasureCoded.getParityFragments())
+            return;
+        close(new TimeoutException("Couldn't get chunk " + slot.fileId + slot.chunkNo));
+    }
+
+    /**
+     * @param listener told the chunkUID of every chunk or fragment accepted
+     */
+    public void setListener(Consumer<String> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return the fileIds of the chunks of the file, which may belong to other files
+     */
+    public Set<String> getFileIds() {
+        HashSet<String> fileIds = new HashSet<>();
+        for (Slot slot : slots)
+            fileIds.add(slot.fileId);
+        return fileIds;
+    }
+
+    public synchronized int getNumWritten() {
+        return numWritten;
+    }
+
+    public int getNumSlots() {
+        return slots.size();
+    }
+
+    public CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * A chunk or fragment to request from the peers that store it
+     */
+    public static class ChunkRequest {
+        private final String fileId;
+        private final int chunkNo;
+
+        private ChunkRequest(String fileId, int chunkNo) {
+            this.fileId = fileId;
+            this.chunkNo = chunkNo;
+        }
+
+        public String getFileId() {
+            return fileId;
+        }
+
+        public int getChunkNo() {
+            return chunkNo;
+        }
+
+        public String getChunkUID() {
+            return fileId + chunkNo;
+        }
+    }
+
+    /**
+     * A stored chunk and the offsets of the file it is written at
+     */
+    private static class Slot {
+        private final int index;
+        private final String fileId;
+        private final int chunkNo;
+        private final int length;
+        private final byte[] hash;              // null if the chunk can't be checked
+        private final boolean encoded;
+        private final ChunkRef erasureCoded;    // null if the chunk is replicated
+        private final ArrayList<Long> offsets = new ArrayList<>();
+        private byte[][] fragments;
+        private int failedFragments = 0;
+
+        private Slot(int index, String fileId, int chunkNo, int length, byte[] hash, boolean encoded, ChunkRef erasureCoded) {
+            this.index = index;
+            this.fileId = fileId;
+            this.chunkNo = chunkNo;
+            this.length = length;
+            this.hash = hash;
+            this.encoded = encoded;
+            this.erasureCoded = erasureCoded;
+            if (erasureCoded != null)
+                fragments = new byte[erasureCoded.getDataFragments() + erasureCoded.getParityFragments()][];
+        }
+
+        /**
+         * @return the index of the fragment with the given chunk number
+         */
+        private int getFragment(int fragmentNo) {
+            for (int i = 0; i < fragments.length; i++)
+                if (erasureCoded.getFragmentNo(i) == fragmentNo)
+                    return i;
+            throw new IllegalArgumentException("Fragment " + fragmentNo + " isn't part of chunk " + chunkNo);
+        }
+
+        /**
+         * Keeps the fragment, and rebuilds the chunk when there are enough fragments
+         * @return the body of the chunk, or null if there aren't enough fragments yet
+         */
+        private byte[] addFragment(ChunkMessage message) {
+            fragments[getFragment(message.getChunkNo())] = message.getBody();
+            int received = 0;
+            for (byte[] fragment : fragments)
+                if (fragment != null)
+                    received++;
+            if (received < erasureCoded.getDataFragments())
+                return null;
+
+            byte[] body = new ReedSolomon(erasureCoded.getDataFragments(), erasureCoded.getParityFragments()).decode(fragments);
+            if (body == null) {
+                discardFragments();
+                return null;
+            }
+            return body;
+        }
+
+        /**
+         * Decodes the body and checks it against the length and hash of the chunk. If the chunk is erasure
+         * coded, there is no way to know which fragment was corrupted, so all of them are discarded.
+         * @return the content of the chunk, or null if it isn't valid
+         */
+        private ByteBuffer check(ByteBuffer body) {
+            try {
+                ByteBuffer content = body;
+                if (encoded) {
+                    byte[] bytes = new byte[body.remaining()];
+                    body.duplicate().get(bytes);
+                    content = ByteBuffer.wrap(ChunkCodec.decode(bytes));
+                }
+
+                boolean valid;
+                if (hash == null) {
+                    valid = content.remaining() >= length;
+                } else {
+                    MessageDigest digest = Utils.getDigest();
+                    digest.update(content.duplicate());
+                    valid = content.remaining() == length && Arrays.equals(digest.digest(), hash);
+                }
+                if (valid)
+                    return content;
+            } catch (DataFormatException e) {
+                Logger.getGlobal().warning("Couldn't decode chunk " + fileId + chunkNo + ": " + e.getLocalizedMessage());
+            }
+
+            Logger.getGlobal().warning("Chunk " + fileId + chunkNo + " failed integrity check, requesting it again");
+            if (erasureCoded != null)
+                discardFragments();
+            return null;
+        }
+
+        private void discardFragments() {
+            Arrays.fill(fragments, null);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package Peer.protocols;
 
 import Peer.Peer;
+import Peer.Utils;
 
 import java.util.Iterator;
 
@@ -33,6 +34,19 @@ public class State {
         text += "\n     Used capacity: " + peer.getUsedCapacity()/1000.0 + "KB";
         text += "\n     Total Capacity: " + capacity/1000.0 + "KB";
 
+        text += "\n" + peer.getPendingChunks().getRttEstimator().toString();
+        text += "\n" + Utils.getTaskExecutor().toString();
+        text += "\nTimers pending: " + Utils.getTimer().getPending();
+
+        text += "\n" + peer.MessageUtils.getDataBucket().toString();
+        text += "\n" + peer.MessageUtils.getRecoveryBucket().toString();
+
+        text += "\nChannels";
+        text += "\n     " + peer.CommunicationChannels.getControlChannel().toString();
+        text += "\n     " + peer.CommunicationChannels.getDataChannel().toString();
+        text += "\n     " + peer.CommunicationChannels.getRecoveryChannel().toString();
+        text += "\n     TCP connections: " + peer.MessageUtils.getDataPlane().getNumConnections();
+
         return text;
     }
 }
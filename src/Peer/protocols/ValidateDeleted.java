@@ -22,7 +22,7 @@ public class ValidateDeleted {
         File[] files = new File(peer.getFileSystemPath()).listFiles();
         for(File file: files) {
             if (file.isDirectory()) {
-                new Thread(() -> handleValidation(file, RESEND_DELAY, 0)).start();
+                Utils.execute(() -> handleValidation(file, RESEND_DELAY, 0));
             }
         }
     }
@@ -31,7 +31,7 @@ public class ValidateDeleted {
         if (count >= NUM_TRIES) return;
         GetDeletedMessage message = new GetDeletedMessage(Peer.PROTOCOL_VERSION, peer.getPeerId(), file.getName());
         try {
-            peer.MessageUtils.sendMessage(message);
+            peer.getControlBatcher().send(message);
         } catch (IOException e) {
             Logger.getGlobal().warning("Couldn't send GetDeleted message: " + e.getLocalizedMessage());
         }